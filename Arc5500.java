@@ -8,36 +8,150 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 
-import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
 public class Arc5500 {
     // pathspecType will hold type of pathname.
     // For Example {"x1.wav": "file". "A6": "directory"}
     private static HashMap<String, String> pathspecType = new HashMap<String, String>();
-    private static HashMap<String, List<Boolean>> songs = new HashMap<String, List<Boolean>>();
-    private static HashMap<String, Float> computedMatches = new HashMap<String, Float>();
-    private static HashMap<String, Float> computedMismatches = new HashMap<String, Float>();
-    private static HashMap<String, Double> computedWholeFileRMS = new HashMap<String, Double>();
+    // tracks holds the fingerprints of the files analysed so far (by
+    // canonical path, length and modification time), and computedMatches /
+    // computedMismatches the results of comparing them in this run (by
+    // canonical paths), all within the arc5500.cachemb budget. The budget
+    // bounds what is kept between runs of a daemon: a run itself holds the
+    // tracks of all its inputs in its Manifest, whatever the budget.
+    private static final long cacheBudget = LruCache.budget("arc5500.cachemb",
+            0.25);
+    private static LruCache<String, Track> tracks = new LruCache<String, Track>(
+            cacheBudget - cacheBudget / 8, new TrackWeigher());
+    private static LruCache<String, Float> computedMatches = new LruCache<String, Float>(
+            cacheBudget / 16, new ResultWeigher());
+    private static LruCache<String, Float> computedMismatches = new LruCache<String, Float>(
+            cacheBudget / 16, new ResultWeigher());
+    private static FingerprintStore store = FingerprintStore.open();
+    // worker threads (--threads), or null to work on the main thread only
+    private static ExecutorService pool;
+    private static int threads = 1;
+    // runs the STFTs of files that leave workers idle (see Preparation), or
+    // null with a single thread
+    private static ParallelFFT fft;
+    // the threads that decode files into PcmPipes (see analyse)
+    private static final ExecutorService decoders = newDecoderThreads();
+    // blocks of PCM a decoder may run ahead of the analysis of its file
+    private static final int PIPE_BLOCKS = 8;
+    // where MATCH lines and errors go: the console, or a daemon's client
+    private static PrintStream out = System.out;
+    private static PrintStream err = System.err;
+    // address given with --serve, or null
+    private static String serveAddress;
+    private static boolean stats;
+    private static String statsFile;
+    // whether a daemon request wants the --stats-file dump in its reply
+    private static boolean statsReply;
+    private static CascadeFilter cascade;
     private static String fileName1;
     private static String fileName2;
+    private static int arg_limit;
     // private static int sample_rate=11025;
     // List of valid tokens.
     public static final List<String> ValidPathSpecTokens = Arrays.asList("-f",
             "--file", "-d", "--dir");
 
     public static void main(String[] args) {
+        args = parseOptions(args);
+        if (args == null) {
+            System.exit(1);
+        }
+        if (statsReply) {
+            err.println("ERROR: Unknown option --stats-reply");
+            System.exit(1);
+        }
+        if (serveAddress != null) {
+            if (args.length != 0) {
+                err.println("ERROR: Unexpected number of command line arguments.");
+                System.exit(1);
+            }
+            try {
+                MatchServer.serve(serveAddress);
+            } catch (IOException e) {
+                err.println("ERROR: Cannot serve on " + serveAddress);
+                System.exit(1);
+            }
+            return;
+        }
+        System.exit(match(args));
+    }
+
+    /*
+     * Answers one request of the daemon (see MatchServer): the arguments of
+     * a command line run, whose output, errors included, goes to reply.
+     * Requests are handled one at a time. Returns the exit status the
+     * command line would have had.
+     *
+     * While a request runs, System.err is the reply too, so the diagnostics
+     * of the classes that print there (and lame's, see LameMp3Decoder) reach
+     * the client rather than the daemon's console. Options only last for
+     * their request: the daemon's own --threads is restored afterwards.
+     *
+     * The daemon never writes files for a client, which may be another
+     * user: --stats-file is refused, and --stats-reply sends the same JSON
+     * in the reply instead, each line after MatchServer.STATS, for the
+     * client to write (MatchClient turns one option into the other).
+     */
+    static synchronized int serveRequest(String[] args, PrintStream reply) {
+        int daemonThreads = threads;
+        PrintStream console = System.err;
+        out = reply;
+        err = reply;
+        System.setErr(reply);
+        try {
+            pathspecType.clear();
+            computedMatches.clear();
+            computedMismatches.clear();
+            args = parseOptions(args);
+            if (args == null) {
+                return 1;
+            }
+            if (serveAddress != null) {
+                err.println("ERROR: Unknown option --serve");
+                return 1;
+            }
+            if (statsFile != null) {
+                err.println("ERROR: The daemon does not write --stats-file;"
+                        + " use --stats-reply");
+                return 1;
+            }
+            return match(args);
+        } finally {
+            setThreads(daemonThreads);
+            System.setErr(console);
+            out = System.out;
+            err = console;
+        }
+    }
+
+    /*
+     * Given the pathspec arguments of the command line, reports the matches
+     * between them and returns the exit status.
+     */
+    private static int match(String[] args) {
+        Stats.reset();
+        cascade = null;
         arg_limit=4;
         if (args.length != arg_limit) {
-            System.err
-                    .println("ERROR: Unexpected number of command line arguments.");
-            System.exit(1);
+            err.println("ERROR: Unexpected number of command line arguments.");
+            return 1;
         }
         if (!(ValidPathSpecTokens.contains(args[0]) && ValidPathSpecTokens
                 .contains(args[2]))) {
-            System.err.println("ERROR: Incorrect pathspec.");
-            System.exit(1);
+            err.println("ERROR: Incorrect pathspec.");
+            return 1;
         }
         if (args[0].equals("-f") || args[0].equals("--file")) {
             pathspecType.put(args[1], "file");
@@ -49,21 +163,166 @@ public class Arc5500 {
         } else {
             pathspecType.put(args[3], "directory");
         }
-        checkValidity(args[1], args[3]);
+        int status = checkValidity(args[1], args[3]);
+        reportStats();
+        return status;
+    }
+
+    // prints the --stats summary and writes the --stats-file dump
+    private static void reportStats() {
+        if (cascade != null) {
+            cascade.publish();
+        }
+        if (stats) {
+            if (cascade != null) {
+                cascade.report(err);
+            }
+            Stats.report(err);
+        }
+        if (statsFile != null) {
+            try {
+                PrintStream dump = new PrintStream(new FileOutputStream(
+                        statsFile), false, "UTF-8");
+                try {
+                    Stats.dump(dump);
+                } finally {
+                    dump.close();
+                }
+            } catch (IOException e) {
+                err.println("ERROR: Cannot write " + statsFile);
+            }
+        }
+        if (statsReply) {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            PrintStream dump = new PrintStream(json);
+            Stats.dump(dump);
+            dump.flush();
+            for (String line : json.toString().split("\n")) {
+                out.println(MatchServer.STATS + line);
+            }
+        }
+    }
+
+    /*
+     * Reads the options that may precede the pathspecs and returns the
+     * remaining arguments, or null after reporting an invalid option.
+     * 
+     * --threads N runs the analysis and the comparisons on N threads; the
+     * output is the same as with one thread (the default).
+     * 
+     * --serve ADDRESS starts the daemon (see MatchServer) instead of
+     * comparing files.
+     * 
+     * --stats reports, after the MATCH lines, how many pairs each tier of
+     * the CascadeFilter pruned, and the time, allocation and cache hit rates
+     * of every stage (see Stats), on the error stream.
+     * 
+     * --stats-file FILE writes the same data, with the histograms and the
+     * times of every file, to FILE as JSON. In a daemon request it is
+     * --stats-reply instead, see serveRequest.
+     */
+    private static String[] parseOptions(String[] args) {
+        int i = 0;
+        serveAddress = null;
+        stats = false;
+        statsFile = null;
+        statsReply = false;
+        while (i < args.length && args[i].startsWith("--")
+                && !ValidPathSpecTokens.contains(args[i])) {
+            if (args[i].equals("--threads")) {
+                String value = i + 1 < args.length ? args[i + 1] : "";
+                int n;
+                try {
+                    n = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    n = 0;
+                }
+                if (n < 1) {
+                    err.println("ERROR: Invalid number of threads " + value);
+                    return null;
+                }
+                setThreads(n);
+                i += 2;
+            } else if (args[i].equals("--serve") && i + 1 < args.length) {
+                serveAddress = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("--stats")) {
+                stats = true;
+                i++;
+            } else if (args[i].equals("--stats-file") && i + 1 < args.length) {
+                statsFile = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("--stats-reply")) {
+                statsReply = true;
+                i++;
+            } else {
+                err.println("ERROR: Unknown option " + args[i]);
+                return null;
+            }
+        }
+        Stats.setEnabled(stats || statsFile != null || statsReply);
+        return Arrays.copyOfRange(args, i, args.length);
+    }
+
+    // (re)creates the worker pool for the given number of threads
+    private static void setThreads(int n) {
+        if (n == threads) {
+            return;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            fft.shutdown();
+            fft = null;
+        }
+        threads = n;
+        if (threads > 1) {
+            fft = new ParallelFFT(new ForkJoinPool(threads));
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "arc5500-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /*
+     * Decoders spend most of their time waiting, on the disk or on LAME, so
+     * they get a thread each rather than a place in the pool: a virtual
+     * thread where the JVM has them (Java 21, looked up by reflection so
+     * that the code still runs on Java 17), otherwise a daemon platform
+     * thread, kept for reuse. There are never more decoders running than
+     * files being analysed, one per worker.
+     */
+    private static ExecutorService newDecoderThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "arc5500-decoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
     }
 
     /*
      * Given two pathnames, checks if each pathname corresponds to the format
      * specified in the problem statement. Uses helper functions to determine
-     * whether the given path contains files / directories exits if the given
-     * path is invalid
+     * whether the given path contains files / directories. Returns the exit
+     * status: 1 if a given path is invalid.
      */
-    private static void checkValidity(String pathname1, String pathname2) {
+    private static int checkValidity(String pathname1, String pathname2) {
         if (checkExistance(pathname2) && checkExistance(pathname1)) {
             checkMatchForFiles(pathname1, pathname2);
-            System.exit(0);
+            return 0;
         } else {
-            System.exit(1);
+            return 1;
         }
     }
 
@@ -82,7 +341,7 @@ public class Arc5500 {
         if (pathspecType.get(pathname).equals("file")) {
             doesExists = f.isFile();
             if (!doesExists) {
-                System.err.println("ERROR: File " + pathname
+                err.println("ERROR: File " + pathname
                         + " does not exists.");
                 isCorrectFormat = false;
             } else {
@@ -91,14 +350,14 @@ public class Arc5500 {
         } else {
             doesExists = f.isDirectory();
             if (!doesExists) {
-                System.err.println("ERROR: Directory " + pathname
+                err.println("ERROR: Directory " + pathname
                         + " does not exists.");
                 isCorrectFormat = false;
             } else {
                 File[] listOfFiles = f.listFiles();
                 for (int i = 0; i < listOfFiles.length; i++) {
                     if (listOfFiles[i].isDirectory()) {
-                        System.err.println("ERROR: Sub-Directory "
+                        err.println("ERROR: Sub-Directory "
                                 + listOfFiles[i] + " exists.");
                         isCorrectFormat = false;
                     } else {
@@ -122,7 +381,7 @@ public class Arc5500 {
         } else if (isMP3) {
             return true;
         }
-        System.err.println("ERROR: Unsuported Audio Format of " + f.toString());
+        err.println("ERROR: Unsuported Audio Format of " + f.toString());
         return false;
     }
 
@@ -131,603 +390,666 @@ public class Arc5500 {
      * file(s). A pathspec can be a file or a directory containing MP3 and WAV
      * files.
      * 
-     * We choose WAV format as the canonical format for all our comparisons. So,
-     * we are checking if the file is an MP3 and converting the MP3 file to a
-     * WAV file before checking for matches.
+     * The work is done in three stages that overlap: decoder threads stream
+     * each file as PCM into a bounded PcmPipe, the workers analyse the PCM
+     * as it arrives into the file's Track (Preparation), and the match
+     * stage compares the tracks of pathspec1 with those of pathspec2, file
+     * by file in directory order, as soon as both are loaded. Only the
+     * tracks and a few pipes of PCM are ever held, however many files
+     * there are. When both pathspecs are directories the FingerprintIndex
+     * needs every track first, so matching waits for the preparation.
      */
     private static void checkMatchForFiles(String fs1, String fs2) {
-        File f1 = new File(fs1);
-        File f2 = new File(fs2);
-
-        // Pathspec1 and pathspec2 are both files
-        if ((pathspecType.get(fs1).equals("file"))
-                && (pathspecType.get(fs2).equals("file"))) {
-            if (checkMP3(f1)) {
-                f1 = convertMP3Mono(f1);
-                f1 = convertMP3(f1);
-            } else {
-                f1 = convertWAV(f1);
-                f1 = convertMP3Mono(f1);
-                f1 = convertMP3(f1);
-            }
-            if (checkMP3(f2)) {
-                f2 = convertMP3Mono(f2);
-                f2 = convertMP3(f2);
-            } else {
-                f2 = convertWAV(f2);
-                f2 = convertMP3Mono(f2);
-                f2 = convertMP3(f2);
+        File[] files1 = listInputs(fs1);
+        File[] files2 = listInputs(fs2);
+        Preparation preparation = new Preparation(files1, files2);
+        Manifest manifest = preparation.getManifest();
+
+        // When both pathspecs are directories the tracks are put in a
+        // FingerprintIndex, and only the pairs the index can not rule out
+        // are compared.
+        boolean indexed = pathspecType.get(fs1).equals("directory")
+                && pathspecType.get(fs2).equals("directory");
+        if (indexed) {
+            preparation.finish();
+        }
+        long started = System.nanoTime();
+        FingerprintIndex index = null;
+        if (indexed) {
+            index = buildIndex(manifest);
+        }
+        cascade = new CascadeFilter();
+        Comparisons comparisons = new Comparisons();
+        for (int i = 0; i < files1.length; i++) {
+            fileName1 = files1[i].getName();
+            for (int j = 0; j < files2.length; j++) {
+                fileName2 = files2[j].getName();
+                Track t1 = preparation.track(0, i);
+                Track t2 = preparation.track(1, j);
+                int p1 = manifest.position(0, i);
+                int p2 = manifest.position(1, j);
+                if (index == null || (p1 >= 0 && p2 >= 0
+                        && index.mayMatch(p1, p2))) {
+                    comparisons.add(t1, t2);
+                }
             }
-            checkFileMatch(f1, f2);
         }
+        comparisons.finish();
+        preparation.finish();
+        Stats.count("match.nanos", System.nanoTime() - started);
+    }
 
-        // Pathspec1 is a directory and pathspec2 is a file
-        else if ((pathspecType.get(fs1).equals("directory"))
-                && (pathspecType.get(fs2).equals("file"))) {
-            File[] listOfFiles = f1.listFiles();
-            if (checkMP3(f2)) {
-                f2 = convertMP3Mono(f2);
-                f2 = convertMP3(f2);
-            } else {
-                f2 = convertWAV(f2);
-                f2 = convertMP3Mono(f2);
-                f2 = convertMP3(f2);
-            }
-            for (int i = 0; i < listOfFiles.length; i++) {
-
-                if (checkMP3(listOfFiles[i])) {
-                    listOfFiles[i] = convertMP3Mono(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3(listOfFiles[i]);
-                } else {
-                    listOfFiles[i] = convertWAV(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3Mono(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3(listOfFiles[i]);
+    // the files named by a pathspec: the file itself or a directory's files
+    private static File[] listInputs(String pathspec) {
+        File f = new File(pathspec);
+        if (pathspecType.get(pathspec).equals("file")) {
+            return new File[] { f };
+        }
+        return f.listFiles();
+    }
+
+    /*
+     * The preparation stage: loads every distinct file of the two pathspecs
+     * (by canonical path) exactly once into a Manifest, on all threads.
+     * The files are loaded in the order the match stage first needs them
+     * (the first file of pathspec1, the files of pathspec2, then the rest
+     * of pathspec1) and at most 4 per thread ahead of it, so the first
+     * comparisons run while later files are still being analysed. With
+     * fewer files than threads the workers left over would idle, so the
+     * files transform their STFT frames in batches on all threads instead.
+     */
+    private static class Preparation {
+        private final OrderedExecutor<Track> loads = new OrderedExecutor<Track>(
+                pool, 4 * threads);
+        private final long started = System.nanoTime();
+        private final List<File> distinct = new ArrayList<File>();
+        private final Manifest manifest;
+        // the ParallelFFT for the files, or null
+        private final ParallelFFT batches;
+        private int submitted;
+
+        Preparation(File[] files1, File[] files2) {
+            File[][] inputs = { files1, files2 };
+            int[][] positions = { new int[files1.length],
+                    new int[files2.length] };
+            HashMap<String, Integer> seen = new HashMap<String, Integer>();
+            int first = Math.min(1, files1.length);
+            for (int n = 0; n < files1.length + files2.length; n++) {
+                int s = n < first || n >= first + files2.length ? 0 : 1;
+                int i = s == 1 ? n - first : n < first ? 0 : n - files2.length;
+                String path = canonicalPath(inputs[s][i]);
+                Integer d = seen.get(path);
+                if (d == null) {
+                    d = distinct.size();
+                    distinct.add(inputs[s][i]);
+                    seen.put(path, d);
                 }
-                checkFileMatch(listOfFiles[i], f2);
+                positions[s][i] = d;
             }
+            manifest = new Manifest(distinct.size(), positions);
+            batches = distinct.size() < threads ? fft : null;
         }
 
-        // pathspec1 is a file and pathspec2 is a directory
-        else if ((pathspecType.get(fs1).equals("file"))
-                && (pathspecType.get(fs2).equals("directory"))) {
-            File[] listOfFiles = f2.listFiles();
-            fileName1 = f1.getName();
-            if (checkMP3(f1)) {
-                f1 = convertMP3Mono(f1);
-                f1 = convertMP3(f1);
-            } else {
-                f1 = convertWAV(f1);
-                f1 = convertMP3Mono(f1);
-                f1 = convertMP3(f1);
-            }
-            for (int i = 0; i < listOfFiles.length; i++) {
-                File file = listOfFiles[i];
-                fileName2 = file.getName();
-                if (checkMP3(listOfFiles[i])) {
-                    listOfFiles[i] = convertMP3Mono(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3(listOfFiles[i]);
-                } else {
-                    listOfFiles[i] = convertWAV(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3Mono(listOfFiles[i]);
-                    listOfFiles[i] = convertMP3(listOfFiles[i]);
-                }
-                checkFileMatch(f1, listOfFiles[i]);
-            }
-        }
-
-        // finally when both pathspecs are directories
-        else {
-            File[] listOfFiles1 = f1.listFiles();
-            File[] listOfFiles2 = f2.listFiles();
-            File file1;
-            File file2;
-            for (int i = 0; i < listOfFiles1.length; i++) {
-                file1 = listOfFiles1[i];
-                fileName1 = file1.getName();
-                if (checkMP3(file1)) {
-                    file1 = convertMP3Mono(file1);
-                    file1 = convertMP3(file1);
-                } else {
-                    file1 = convertWAV(file1);
-                    file1 = convertMP3Mono(file1);
-                    file1 = convertMP3(file1);
-                }
-                for (int j = 0; j < listOfFiles2.length; j++) {
-                    file2 = listOfFiles2[j];
-                    fileName2 = file2.getName();
-                    if (checkMP3(file2)) {
-                        file2 = convertMP3Mono(file2);
-                        file2 = convertMP3(file2);
-                    } else {
-                        file2 = convertWAV(file2);
-                        file2 = convertMP3Mono(file2);
-                        file2 = convertMP3(file2);
+        Manifest getManifest() {
+            return manifest;
+        }
+
+        // the track of the given file (null if unreadable), once loaded
+        Track track(int pathspec, int file) {
+            while (!manifest.isLoaded(pathspec, file)) {
+                next();
+            }
+            return manifest.track(pathspec, file);
+        }
+
+        // waits until every file is loaded
+        void finish() {
+            while (manifest.loaded() < manifest.distinct()) {
+                next();
+            }
+        }
+
+        private void next() {
+            while (submitted < distinct.size() && !loads.isFull()) {
+                final File file = distinct.get(submitted++);
+                loads.submit(new Callable<Track>() {
+                    public Track call() {
+                        return loadTrack(file, batches);
                     }
-                    checkFileMatch(file1, file2);
-                }
+                });
+            }
+            manifest.add(loads.take());
+            if (manifest.loaded() == manifest.distinct()) {
+                Stats.count("files", manifest.getTracks().size());
+                Stats.count("prepare.nanos", System.nanoTime() - started);
             }
         }
     }
 
     /*
-     * Given two files, function reach through each sample for file1 and file2
-     * to check if there are any matches between these two files Header of file
-     * will be stripped before comparing samples from one file against the other
-     * file
+     * Puts the tracks of the manifest in a FingerprintIndex and looks up in
+     * it, on all threads, every track that is shorter than some track of
+     * the other pathspec: only those are ever compared as excerpts (see
+     * FingerprintIndex.mayMatch).
      */
-
-    private static void checkFileMatch(File f1, File f2) {
-        int size1 = (int) f1.length();
-        int size2 = (int) f2.length();
-        byte[] buf1 = new byte[size1];
-        byte[] buf2 = new byte[size2];
-        List<Boolean> largerFileRMS;
-        List<Boolean> smallerFileRMS;
-        String largerFileName;
-        String smallerFileName;
-        FileInputStream fInput1;
-        FileInputStream fInput2;
-        FileInputStream fInput11;
-        FileInputStream fInput22;
+    private static FingerprintIndex buildIndex(Manifest manifest) {
+        Stats.Span span = Stats.begin(Stats.Stage.INDEX, null);
         try {
-            fInput1 = new FileInputStream(f1);
-            fInput11 = new FileInputStream(f1);
-            fInput11.read(buf1);
-            fInput1.skip(44);
-            fInput2 = new FileInputStream(f2);
-            fInput22 = new FileInputStream(f2);
-            fInput22.read(buf2);
-            fInput2.skip(44);
-            String header1 = getHeader(buf1, f1);
-            String header2 = getHeader(buf2, f2);
-            String[] firstValues = header1.split(",");
-            String[] secondValues = header2.split(",");
-            int sample_rate1 = Integer.parseInt(firstValues[3]);
-            int sample_rate2 = Integer.parseInt(secondValues[3]);
-            List<Double> smMags;
-            List<Double> lfMags;
-            smMags = checkMag(size1, fInput1);
-            lfMags = checkMag(size2, fInput2);
-            double rmsSmall;
-            double rmsLarge;
-            if (smMags.size() == lfMags.size()) {
-                if (computedWholeFileRMS.containsKey(f1.getName())){
-                    rmsSmall = computedWholeFileRMS.get(f1.getName());
-                }
-                else {
-                    rmsSmall = calRMS(smMags);
-                    computedWholeFileRMS.put(f1.getName(), rmsSmall);
-                }
-                if (computedWholeFileRMS.containsKey(f2.getName())){
-                    rmsLarge = computedWholeFileRMS.get(f2.getName());
-                }
-                else {
-                    rmsLarge = calRMS(lfMags);
-                    computedWholeFileRMS.put(f2.getName(), rmsLarge);
-                }
-                if (Math.abs(rmsSmall - rmsLarge) < 1.0) {
-                    System.out.println("MATCH: 0.0 " + f1.getName() + " "
-                            + f2.getName());
-                    return;
-                } else {
-                    largerFileName = f1.getName();
-                    smallerFileName = f2.getName();
-                    if (songs.containsKey(largerFileName)) {
-                        largerFileRMS = songs.get(largerFileName);
-                    } else {
-                        largerFileRMS = newRMS(smMags, sample_rate1);
-                        songs.put(largerFileName, largerFileRMS);
+            FingerprintIndex index = new FingerprintIndex(manifest
+                    .getTracks());
+            long[] longest = new long[2];
+            for (int s = 0; s < 2; s++) {
+                for (int i = 0; i < manifest.size(s); i++) {
+                    Track t = manifest.track(s, i);
+                    if (t != null) {
+                        longest[s] = Math.max(longest[s], t.getSampleCount());
                     }
-                    if (songs.containsKey(smallerFileName)) {
-                        smallerFileRMS = songs.get(smallerFileName);
-                    } else {
-                        smallerFileRMS = newRMS(lfMags, sample_rate2);
-
-                        songs.put(smallerFileName, smallerFileRMS);
-                    }
-                }
-            } else if (smMags.size() > lfMags.size()) {
-                largerFileName = f1.getName();
-                smallerFileName = f2.getName();
-                if (songs.containsKey(largerFileName)) {
-                    largerFileRMS = songs.get(largerFileName);
-                } else {
-                    largerFileRMS = newRMS(smMags, sample_rate1);
-                    songs.put(largerFileName, largerFileRMS);
                 }
-                if (songs.containsKey(smallerFileName)) {
-                    smallerFileRMS = songs.get(smallerFileName);
-                } else {
-                    smallerFileRMS = newRMS(lfMags, sample_rate2);
-
-                    songs.put(smallerFileName, smallerFileRMS);
-                }
-
-            } else {
-                largerFileName = f2.getName();
-                smallerFileName = f1.getName();
-                if (songs.containsKey(largerFileName)) {
-                    largerFileRMS = songs.get(largerFileName);
-                } else {
-                    largerFileRMS = newRMS(lfMags, sample_rate2);
-                    songs.put(largerFileName, largerFileRMS);
+            }
+            BitSet excerpts = new BitSet(index.size());
+            for (int s = 0; s < 2; s++) {
+                for (int i = 0; i < manifest.size(s); i++) {
+                    Track t = manifest.track(s, i);
+                    if (t != null && t.getSampleCount() < longest[1 - s]) {
+                        excerpts.set(manifest.position(s, i));
+                    }
                 }
-                if (songs.containsKey(smallerFileName)) {
-                    smallerFileRMS = songs.get(smallerFileName);
-                } else {
-                    smallerFileRMS = newRMS(smMags, sample_rate1);
+            }
+            return lookUp(index, excerpts);
+        } finally {
+            span.end();
+        }
+    }
 
-                    songs.put(smallerFileName, smallerFileRMS);
+    private static FingerprintIndex lookUp(final FingerprintIndex index,
+            BitSet excerpts) {
+        OrderedExecutor<BitSet> lookups = new OrderedExecutor<BitSet>(pool,
+                4 * threads);
+        for (int t = excerpts.nextSetBit(0); t >= 0; t = excerpts
+                .nextSetBit(t + 1)) {
+            final int q = t;
+            lookups.submit(new Callable<BitSet>() {
+                public BitSet call() {
+                    return index.candidates(q);
                 }
+            });
+            while (lookups.isFull()) {
+                lookups.take();
             }
-            String myKey = largerFileName+"|"+smallerFileName;
-            String myKey1 = smallerFileName+"|"+largerFileName;
-            if (computedMatches.containsKey(myKey)){
-                System.out.println("MATCH: "+ computedMatches.get(myKey) + " " + largerFileName + " " + smallerFileName);
-                return;
+        }
+        while (!lookups.isEmpty()) {
+            lookups.take();
+        }
+        return index;
+    }
+
+    /*
+     * Given an MP3 or WAV file, returns its Track: its length, whole-file RMS
+     * and fingerprints. When the FingerprintStore is enabled, files
+     * analysed in an earlier run are found in it by their path, length and
+     * modification time and are not decoded again; other files are
+     * decoded, analysed and stored. With the store off, as it is by
+     * default, nothing is hashed or written: the only disk I/O of a run is
+     * reading its inputs (and the --stats-file, if one is asked for).
+     * Returns null, after reporting the error, if the file can not be read.
+     * fft, if not null, transforms the frames of the analysis.
+     */
+    private static Track loadTrack(File file, ParallelFFT fft) {
+        Track track = null;
+        try {
+            String path = file.getCanonicalPath();
+            // a file changed since it was cached (in a daemon) is a new entry
+            String version = path + "|" + file.length() + "|"
+                    + file.lastModified();
+            track = tracks.get(version);
+            if (track != null) {
+                Stats.count("cache.tracks.hits", 1);
+                return track;
             }
-            if (computedMatches.containsKey(myKey1)){
-                System.out.println("MATCH: "+ computedMatches.get(myKey1) +  " " + smallerFileName + " " + largerFileName);
-                return;
+            Stats.count("cache.tracks.misses", 1);
+            String key = null;
+            if (store.isEnabled()) {
+                Stats.Span span = Stats.begin(Stats.Stage.STORE, path);
+                try {
+                    key = store.key(file);
+                    track = store.get(key, path, file.getName());
+                } finally {
+                    span.end();
+                }
+                Stats.count(track != null ? "cache.store.hits"
+                        : "cache.store.misses", 1);
             }
-            if ((computedMismatches.containsKey(myKey))||(computedMismatches.containsKey(myKey1))){
-                //System.out.println("Already MisMatch Computed");
-                return;
+            if (track == null) {
+                track = analyse(file, path, fft);
+                if (track == null) {
+                    return null;
+                }
+                if (key != null) {
+                    Stats.Span span = Stats.begin(Stats.Stage.STORE, path);
+                    try {
+                        store.put(key, track);
+                    } finally {
+                        span.end();
+                    }
+                }
             }
-
-            checkMatch(smallerFileRMS, largerFileRMS, largerFileName,
-                    smallerFileName);
+            tracks.put(version, track);
         } catch (FileNotFoundException e) {
-            System.err.println("ERROR: Given file does not exist.");
+            err.println("ERROR: Given file does not exist.");
         } catch (IOException e) {
-            System.err.println("ERROR: I/O Exception Occured.");
+            err.println("ERROR: I/O Exception Occured.");
         }
+        return track;
     }
 
     /*
-     * checking rms values calculated from magnitudes for each file and
-     * comparing values against each other. A sequence of samples is considered
-     * before we say they match.
+     * Given an MP3 or WAV file, computes its Track: the whole-file RMS and
+     * the envelope fingerprint from the magnitudes, and the landmark
+     * fingerprint from a short-time Fourier transform. Returns null after
+     * reporting an error if the file can not be decoded.
+     * 
+     * The decoder (MP3) or the normaliser (WAV) produces the canonical mono
+     * 16 bit PCM block by block on a decoder thread and pushes it through
+     * a PcmPipe into a TrackAnalyser on this thread, so decoding overlaps
+     * with the analysis, the input is read once and nothing is written to
+     * disk. No magnitudes are kept and the pipe holds at most PIPE_BLOCKS
+     * blocks, so a recording of any length is analysed in about the same
+     * memory.
      */
-    private static boolean checkMatch(List<Boolean> rmsSmall,
-            List<Boolean> rmsLarge, String largerFileName,
-            String smallerFileName) {
-        int x = 0;
-        int count1 = 0;
-        int threshold = (int)(rmsSmall.size()/20 + 2);
-        Boolean isMatch = false;
-        double preLarge = 0.0;
-        double preSmall = 0.0;
-        int exceptions = 0;
-        for (int i = 0; i < rmsLarge.size(); i++) {
-            for (int j = x; j < rmsSmall.size();) {
-                if ((i == (rmsLarge.size() - 1)) && (j < (rmsSmall.size() - 1))) {
-                    isMatch = false;
-                    break;
-                }
-                if ((!(rmsLarge.get(i) ^ rmsSmall.get(j))) || (exceptions < threshold)) {
-                    if (rmsLarge.get(i) ^ rmsSmall.get(j)) {
-                        exceptions++;
-                    }
-                    isMatch = true;
-                    x++;
-                    break;
-                } else {
-                    count1++;
-                    if (isMatch) {
-                        i = i - x;
-                        x = 0;
+    private static Track analyse(final File file, final String path,
+            ParallelFFT fft) throws IOException {
+        final PcmPipe pipe = new PcmPipe(PIPE_BLOCKS);
+        TrackAnalyser analyser = new TrackAnalyser(fft);
+        boolean decoded;
+        Stats.Span span = Stats.begin(Stats.Stage.CONVERT, path);
+        try {
+            final boolean mp3 = checkMP3(file);
+            decoders.execute(new Runnable() {
+                public void run() {
+                    boolean decoded = false;
+                    try {
+                        if (mp3) {
+                            decoded = decodeMP3(file, pipe);
+                        } else {
+                            decoded = normalizeWAV(file, path, pipe);
+                        }
+                    } catch (RuntimeException e) {
+                        // a decoder failing on a corrupt file; report it
+                        // like any other file that can not be decoded
+                        err.println(mp3 ? "ERROR: MP3 to WAV conversion error"
+                                : "ERROR: WAV normalisation error");
+                    } finally {
+                        if (!decoded) {
+                            pipe.fail();
+                        }
                     }
-                    isMatch = false;
-                    exceptions = 0;
-                    break;
                 }
-            }
-        }
-        if (isMatch) {
-            System.out.println("MATCH: " + (float) count1 / (float) 10 + " "
-                    + largerFileName + " " + smallerFileName);
-            String myKey = largerFileName +"|"+smallerFileName;
-            Float seconds = (float) count1 / (float) 10;
-            computedMatches.put(myKey, seconds);
+            });
+            decoded = pipe.drainTo(analyser);
+        } finally {
+            span.end();
         }
-        else{
-            String myKey = largerFileName +"|"+smallerFileName;
-            Float seconds = (float)0;
-            computedMismatches.put(myKey, seconds);
+        if (!decoded) {
+            return null;
         }
-        return isMatch;
+        analyser.recordStats(path);
+        Stats.count("files.analysed", 1);
+        Stats.count("pcm.bytes", 2 * analyser.getSampleCount());
+        return new Track(path, file.getName(), analyser.getSampleCount(),
+                analyser.getSampleRate(), analyser.getRms(),
+                analyser.getEnvelope(), analyser.getLandmarks());
     }
 
     /*
-     * parsing through the header of the WAV file to retrieve values such as
-     * sample rate, channels and frame size for further usage in determining the
-     * channel information
+     * Compares pairs of tracks and reports the matches in the order the pairs
+     * were added. The fingerprint searches (matchOffset) run on the worker
+     * threads, a bounded number of pairs ahead; everything that prints or
+     * uses the computedMatches / computedMismatches caches (checkFileMatch)
+     * runs in order on the calling thread, so the output does not depend on
+     * the number of threads.
+     *
+     * Only pairs whose result is not known yet are searched: a pair that
+     * matches on its RMS, that is in the caches already, or that is being
+     * searched for an earlier position is reported from the caches when its
+     * turn comes (and searched then, in the unlikely case that its result
+     * has been evicted in the meantime).
      */
-    private static String getHeader(byte[] buf, File f) {
-        String header = "";
-        javax.sound.sampled.AudioInputStream inS = null;
-        AudioFormat aformat;
-        try {
-            inS = javax.sound.sampled.AudioSystem.getAudioInputStream(f);
-            aformat = inS.getFormat();
-            int sample_rate = (int) aformat.getSampleRate();
-            int num_channels = (int) aformat.getChannels();
-            int bytes_per_frame = (int) aformat.getFrameSize();
-            int bits_per_sample = (int) aformat.getSampleSizeInBits();
-            header = "" + num_channels + "," + bits_per_sample + ","
-                    + bytes_per_frame + "," + sample_rate;
-        } catch (IOException e) {
-            System.err.println("ERROR: Unable to parse the WAV file");
-        } catch (UnsupportedAudioFileException e) {
-            System.err.println("ERROR: Unable to parse the WAV file");
+    private static class Comparisons {
+        private final int window = 16 * threads;
+        private final OrderedExecutor<Float> searches = new OrderedExecutor<Float>(
+                pool, window);
+        private final ArrayDeque<Pair> pairs = new ArrayDeque<Pair>();
+        // the keys of the pairs being searched
+        private final HashSet<String> searching = new HashSet<String>();
+
+        void add(Track t1, Track t2) {
+            if (t1 == null || t2 == null) {
+                return;
+            }
+            Stats.count("pairs", 1);
+            final Track larger = larger(t1, t2);
+            final Track smaller = larger == t1 ? t2 : t1;
+            String key = smaller.getPath() + "|" + larger.getPath();
+            // every pair goes through the cascade, even if it is not searched
+            cascade.pair();
+            boolean search = false;
+            if (!cascade.sameRecording(smaller, larger)) {
+                search = !isComputed(smaller, larger)
+                        && !searching.contains(key);
+                if (!search) {
+                    cascade.cachedPair();
+                }
+            }
+            if (search) {
+                searches.submit(new Callable<Float>() {
+                    public Float call() {
+                        return matchOffset(smaller, larger);
+                    }
+                });
+                searching.add(key);
+            }
+            pairs.add(new Pair(t1, t2, search ? key : null));
+            while (searches.isFull() || pairs.size() > window) {
+                report();
+            }
+        }
+
+        void finish() {
+            while (!pairs.isEmpty()) {
+                report();
+            }
+        }
+
+        private void report() {
+            Pair pair = pairs.remove();
+            Float offset = null;
+            if (pair.key != null) {
+                offset = searches.take();
+                searching.remove(pair.key);
+            } else if (!sameRms(pair.t1, pair.t2)) {
+                Track larger = larger(pair.t1, pair.t2);
+                Track smaller = larger == pair.t1 ? pair.t2 : pair.t1;
+                if (!isComputed(smaller, larger)) {
+                    offset = matchOffset(smaller, larger);
+                }
+            }
+            checkFileMatch(pair.t1, pair.t2, offset);
         }
-        return header;
+    }
+
+    // two tracks to compare, and the key of their search if one was started
+    private static class Pair {
+        final Track t1;
+        final Track t2;
+        final String key;
+
+        Pair(Track t1, Track t2, String key) {
+            this.t1 = t1;
+            this.t2 = t2;
+            this.key = key;
+        }
+    }
+
+    // true if the tracks are equally long and match on their RMS
+    private static boolean sameRms(Track t1, Track t2) {
+        return t1.getSampleCount() == t2.getSampleCount()
+                && Math.abs(t1.getRms() - t2.getRms()) < 1.0;
+    }
+
+    // true if the result of the pair is in the caches, in either order
+    private static boolean isComputed(Track smaller, Track larger) {
+        String key = larger.getPath() + "|" + smaller.getPath();
+        String key1 = smaller.getPath() + "|" + larger.getPath();
+        return computedMatches.contains(key) || computedMatches.contains(key1)
+                || computedMismatches.contains(key)
+                || computedMismatches.contains(key1);
+    }
+
+    // the longer of two tracks, or t1 if they are equally long
+    private static Track larger(Track t1, Track t2) {
+        return t2.getSampleCount() > t1.getSampleCount() ? t2 : t1;
     }
 
     /*
-     * Used to calculate RMS values, when files are equal in size. When we have
-     * files which are equal in size, we are calculating RMS for the entire file
-     * at once and comparing those values.
+     * Given two tracks, checks if there are any matches between them. Tracks
+     * of equal length match if their whole-file RMS values agree; otherwise
+     * the fingerprint of the shorter one is searched for in the longer one,
+     * unless the pair was compared before. offset is the result of that
+     * search, matchOffset(shorter, longer), computed in advance for pairs
+     * not compared before (see Comparisons).
      */
-    private static double calRMS(List<Double> mgar) {
-        double sqr;
-        double rms = 0;
-        for (int i = 0; i < mgar.size(); i++) {
-            sqr = Math.pow(mgar.get(i), 2);
-            rms = rms + sqr;
+
+    private static void checkFileMatch(Track t1, Track t2, Float offset) {
+        if (sameRms(t1, t2)) {
+            out.println("MATCH: 0.0 " + t1.getName() + " "
+                    + t2.getName());
+            return;
+        }
+        Track larger = larger(t1, t2);
+        Track smaller = larger == t1 ? t2 : t1;
+        String largerFileName = larger.getName();
+        String smallerFileName = smaller.getName();
+        String myKey = larger.getPath()+"|"+smaller.getPath();
+        String myKey1 = smaller.getPath()+"|"+larger.getPath();
+        Float seconds = computedMatches.get(myKey);
+        if (seconds != null){
+            Stats.count("cache.matches.hits", 1);
+            out.println("MATCH: "+ seconds + " " + largerFileName + " " + smallerFileName);
+            return;
+        }
+        seconds = computedMatches.get(myKey1);
+        if (seconds != null){
+            Stats.count("cache.matches.hits", 1);
+            out.println("MATCH: "+ seconds +  " " + smallerFileName + " " + largerFileName);
+            return;
+        }
+        if ((computedMismatches.get(myKey) != null)||(computedMismatches.get(myKey1) != null)){
+            //System.out.println("Already MisMatch Computed");
+            Stats.count("cache.matches.hits", 1);
+            return;
+        }
+
+        Stats.count("cache.matches.misses", 1);
+        if (offset != null) {
+            out.println("MATCH: " + offset + " "
+                    + largerFileName + " " + smallerFileName);
+            computedMatches.put(myKey, offset);
+        } else {
+            computedMismatches.put(myKey, (float) 0);
         }
-        double rms_final = Math.sqrt(rms / mgar.size());
-        return rms_final;
     }
 
     /*
-     * Calculating Root Mean Error(RME) for the list of magnitudes/frequencies
-     * using the sample rate of the file. Root mean squared error values are
-     * calculated for 1/10th of a second. RMS value for each 1/10th of a second
-     * is compared against the previous second and a boolean array is formed is
-     * such a fashion: if previousrmsval <= currentrmsval add true to the rms
-     * list else add false to the rms list
-     * 
-     * Rather than comparing the actual RMS values, we will the using the
-     * boolean output array which represents a sound wave.
-     * 
-     * Example output of this function: file1 : tftttftttftttffff file2 :
-     * tftftftffftttffft
+     * Returns the offset in seconds at which the smaller track occurs in the
+     * larger one, or null if it does not: first the envelope fingerprints
+     * are compared (checkMatch), then the landmarks (checkLandmarkMatch),
+     * each only if the CascadeFilter can not rule the pair out. Pairs that
+     * checkFileMatch matches on their RMS are not searched at all, so they
+     * are counted by Comparisons.add instead. Only reads the tracks, so it
+     * can run on any thread.
      */
-    private static List<Boolean> newRMS(List<Double> mgar, int sample_rate) {
-        // int count = 0;
-        int s_rate = sample_rate / 10;
-        List<Boolean> rmsList = new ArrayList<Boolean>();
-        double rms = 0.0;
-        double previousRms = 0.0;
-        for (int k = 0; k < ((mgar.size() - 1) + s_rate); k += (s_rate)) {
-            List<Double> ls = new ArrayList<Double>();
-            if ((k + (s_rate)) < mgar.size()) {
-                ls = mgar.subList(k, k + (s_rate));
-            } else {
-                break;
+    private static Float matchOffset(Track smaller, Track larger) {
+        Stats.Meter filter = new Stats.Meter();
+        filter.start();
+        boolean envelope = cascade.mayMatchEnvelope(smaller, larger);
+        filter.stop();
+        Float seconds = null;
+        if (envelope) {
+            Stats.Span span = Stats.begin(Stats.Stage.SEARCH, smaller.getPath());
+            try {
+                seconds = checkMatch(smaller.getPyramid(), larger.getPyramid());
+            } finally {
+                span.end();
             }
-            rms = calRMS(ls);
-            if (previousRms <= rms) {
-                rmsList.add(true);
-            } else {
-                rmsList.add(false);
+        }
+        boolean landmarks = false;
+        if (seconds == null) {
+            filter.start();
+            landmarks = cascade.mayMatchLandmarks(smaller, larger);
+            filter.stop();
+        }
+        if (landmarks) {
+            Stats.Span span = Stats.begin(Stats.Stage.ALIGN, smaller.getPath());
+            try {
+                seconds = checkLandmarkMatch(smaller, larger);
+            } finally {
+                span.end();
             }
-            previousRms = rms;
-            // count++;
         }
-        return rmsList;
+        if (!envelope && !landmarks) {
+            cascade.prunedPair();
+        }
+        filter.record(Stats.Stage.FILTER, smaller.getPath());
+        return seconds;
     }
 
     /*
-     * Creating complex numbers from byte data of the wav or mp3 files and
-     * passing the complex numbers to FFT to change from time domain to
-     * frequency domain and then calculating the magnitudes for the complex
-     * numbers returned by FFt
+     * checking rms values calculated from magnitudes for each file and
+     * comparing values against each other. A sequence of samples is considered
+     * before we say they match.
      * 
-     * Given a FileInputStream and length of the file, converts the given audio
-     * file into a frequency domain signal and returns list of
-     * magnitudes(frequencies). We have used a version of FFT available online.
-     * FFT returns a list of complex numbers when we process an audio file.
+     * The smaller fingerprint is searched for in the larger one by
+     * ExcerptSearch, which computes the Hamming distance at every offset and
+     * reports the closest offset where no more than 5% (plus two) of the
+     * windows differ, and refines that offset to 10 ms over the
+     * EnvelopePyramids. Returns the offset in seconds, to 10 ms, or null.
      */
-    private static List<Double> checkMag(long len, FileInputStream fis) {
-        int CSIZE = 2;
-        int index = 0;
-        byte[] buf = new byte[(int) len];
-        List<Double> mags = new ArrayList<Double>();
-        try {
-            fis.read(buf);
-        } catch (IOException e) {
-            System.err.println("ERROR: Cannot read the given input file");
-        }
-        int totalSize = buf.length;
-        int amount = totalSize / CSIZE;
-        Complex[][] results = new Complex[1][1];
-        double magnitude;
-        for (int times = 0, j = 0; times < amount; times++, j += 2) {
-            Complex[] complex = new Complex[1];
-            magnitude = 0;
-            complex[index] = new Complex(buf[(j + 1)], index);
-            FFT.doFFT(complex);
-            results[0] = FFT.getC();
-            magnitude = Math
-                    .sqrt((results[index][index].re()
-                            * results[index][index].re() + (results[index][index]
-                            .im() * results[index][index].im())));
-            mags.add(magnitude);
-        }
-        return mags;
+    private static Float checkMatch(EnvelopePyramid rmsSmall,
+            EnvelopePyramid rmsLarge) {
+        ExcerptSearch.Result result = ExcerptSearch.search(rmsSmall, rmsLarge);
+        if (result.isMatch()) {
+            return result.getSeconds();
+        }
+        return null;
+    }
+
+    /*
+     * Second check for pairs whose energy envelopes do not match: the
+     * spectral peak landmarks (see LandmarkFingerprinter) of the smaller file
+     * are looked up in those of the larger file, and the pair matches if
+     * enough of them agree on one time offset. Landmarks survive changes to
+     * the loudness contour, such as added noise, that break the envelope.
+     * Returns the offset in seconds, or null; to 10 ms if the fine level of
+     * the envelopes agrees around it (see ExcerptSearch.refine).
+     */
+    private static Float checkLandmarkMatch(Track smaller, Track larger) {
+        LandmarkFingerprint.Match result = larger.getLandmarks().align(
+                smaller.getLandmarks());
+        // an excerpt cut between two frames may align one frame early
+        if (!result.isMatch() || result.getOffset() < -1) {
+            return null;
+        }
+        float seconds = ExcerptSearch.refine(smaller.getPyramid(), larger
+                .getPyramid(), result.getOffset()
+                * larger.getLandmarks().getFrameSeconds());
+        if (seconds >= 0) {
+            return seconds;
+        }
+        return Math.max(0f, result.getSeconds());
     }
 
     /*
      * Given a file, returns true if the file is a WAV file, else returns false.
-     * We used the UNIX file utility to check for the WAV format
+     * The format is recognised from the RIFF/WAVE magic bytes and cached per
+     * file by AudioFormatSniffer.
      */
     private static boolean checkWave(File f) {
-        boolean isWave = false;
-        Process p1;
-        Runtime rt = Runtime.getRuntime();
-        try {
-            p1 = rt.exec(new String[] { "file", f.getAbsolutePath() });
-            try {
-                int pexit = p1.waitFor();
-            } catch (InterruptedException e) {
-                System.err.println("ERROR: ProcessBuilder execution error.");
-            }
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    p1.getInputStream()));
-            String line = reader.readLine();
-            reader.close();
-            if (line.contains("RIFF")) {
-                isWave = true;
-            }
-            p1.destroy();
-        } catch (IOException e) {
-            System.err.println("ERROR: ProcessBuilder execution error.");
-        }
-        return isWave;
+        return sniffFormat(f) == AudioFormatSniffer.Format.WAVE;
     }
 
     /*
-     * Given a file, returns true if the file is an MP3, else returns false. We
-     * used the UNIX File utility to check for the MP3 format
+     * Given a file, returns true if the file is an MP3, else returns false. The
+     * format is recognised from the Layer III frame sync (optionally preceded
+     * by an ID3v2 tag) and cached per file by AudioFormatSniffer.
      */
     private static boolean checkMP3(File f) {
-        boolean ismp3 = false;
-        Process p1;
-        Runtime rt = Runtime.getRuntime();
+        return sniffFormat(f) == AudioFormatSniffer.Format.MP3;
+    }
+
+    private static AudioFormatSniffer.Format sniffFormat(File f) {
+        Stats.Span span = Stats.begin(Stats.Stage.DETECT, canonicalPath(f));
         try {
-            p1 = rt.exec(new String[] { "file", f.getAbsolutePath() });
-            try {
-                int pexit = p1.waitFor();
-            } catch (InterruptedException e) {
-                System.err.println("ERROR: MP3 format checking failed");
-            }
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    p1.getInputStream()));
-            String line = reader.readLine();
-            reader.close();
-            if (line.contains("MPEG ADTS, layer III")) {
-                ismp3 = true;
-            }
-            p1.destroy();
+            return AudioFormatSniffer.detect(f);
         } catch (IOException e) {
-            System.err.println("ERROR: MP3 format checking failed");
+            err.println("ERROR: Cannot read the given input file");
+            return AudioFormatSniffer.Format.UNKNOWN;
+        } finally {
+            span.end();
         }
+    }
 
-        return ismp3;
+    // the canonical path of a file, which identifies it in the caches
+    private static String canonicalPath(File f) {
+        try {
+            return f.getCanonicalPath();
+        } catch (IOException e) {
+            return f.getAbsolutePath();
+        }
     }
 
     /*
-     * Given an MP3 file, converts the file to a mono WAV file and returns the
-     * same
+     * Given an MP3 file, decodes it into the sink as mono PCM. Returns false
+     * after reporting an error if it can not be decoded.
      * 
-     * We used the LAME utility available at /course/cs5500f13/bin directory
-     * with the --decode option to convert MP3 files to WAV
+     * The decoder is chosen by Mp3Decoders: an in-process decoder when one is
+     * installed, otherwise the LAME utility with its output read through a
+     * pipe. Either way the audio is mixed down to mono while it is decoded.
      */
-    private static File convertMP3(File file) {
-        File dest_file = new File("temp/" + file.getName());
-        if (dest_file.isFile() && checkWave(file)) {
-            return dest_file;
-        } else {
-            try {
-                ProcessBuilder pb = new ProcessBuilder("/course/cs5500f13/bin/lame",
-                        "--decode", "-a", "--mp3input", 
-                        file.getAbsolutePath(),
-                        "temp/" + file.getName());
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                String line = null;
-                InputStreamReader isr = new InputStreamReader(
-                        p.getInputStream());
-                BufferedReader br = new BufferedReader(isr);
-                while ((line = br.readLine()) != null) {
-                }
-                int rc = p.waitFor();
-                dest_file = new File("temp/" + file.getName());
-            } catch (IOException e) {
-                System.err.println("ERROR: MP3 to WAV conversion error");
-            } catch (InterruptedException ie) {
-                System.err.println("ERROR: MP3 to WAV conversion error");
-            }
+    private static boolean decodeMP3(File file, MonoPcmSink sink) {
+        try {
+            Mp3Decoders.get().decode(file, sink);
+            return true;
+        } catch (IOException e) {
+            err.println("ERROR: MP3 to WAV conversion error");
+        } catch (UnsupportedAudioFileException e) {
+            err.println("ERROR: No MP3 decoder available");
         }
-
-        return dest_file;
+        return false;
     }
 
     /*
-     * Given an WAV file, converts the file to a stereo MP3 and returns the same
+     * Given a WAV file, streams it into the sink as mono 16 bit PCM. Returns
+     * false after reporting an error if it can not be read.
      * 
-     * We used the LAME utility available at /course/cs5500f13/bin directory
-     * with the -m m option to convert to a mono MP3 file. This function is used
-     * to convert a stereo WAV file to Mono WAV file. Since we can't directly
-     * convert a stereo WAV to a Mono WAV, we are converting the WAV to MP3 and
-     * converting MP3 back to WAV.
+     * The channels are mixed down and the samples converted to 16 bits inside
+     * the JVM by PcmNormalizer, so a WAV input no longer needs to be encoded
+     * to MP3 and decoded again just to become mono.
      */
-    private static File convertWAV(File file) {
-        File dest_file = new File("wvtmp/" + file.getName());
-        if (dest_file.isFile() && checkWave(file)) {
-            return dest_file;
-        } else {
+    private static boolean normalizeWAV(File file, String path,
+            MonoPcmSink sink) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
             try {
-                ProcessBuilder pb = new ProcessBuilder("/course/cs5500f13/bin/lame", 
-                        file.getAbsolutePath(), "wvtmp/"
-                                + file.getName());
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                String line = null;
-                InputStreamReader isr = new InputStreamReader(
-                        p.getInputStream());
-                BufferedReader br = new BufferedReader(isr);
-                while ((line = br.readLine()) != null) {
+                WavHeader h;
+                Stats.Span span = Stats.begin(Stats.Stage.HEADER, path);
+                try {
+                    h = WavHeader.read(in);
+                } finally {
+                    span.end();
                 }
-                int rc = p.waitFor();
-                dest_file = new File("wvtmp/" + file.getName());
-            } catch (IOException e) {
-                System.err.println("ERROR: WAV to MP3 conversion error");
-            } catch (InterruptedException ie) {
-                System.err.println("ERROR: WAV to MP3 conversion error");
+                PcmNormalizer.convert(in, h, h.getDataLength(), sink);
+            } finally {
+                in.close();
             }
+            return true;
+        } catch (IOException e) {
+            err.println("ERROR: WAV normalisation error");
+        } catch (UnsupportedAudioFileException e) {
+            err.println("ERROR: Unable to parse the WAV file");
         }
-
-        return dest_file;
+        return false;
     }
 
-    /*
-     * Given a stereo MP3 file, converts it to a Mono MP3 file and returns the
-     * same
-     * 
-     * We used the LAME utility available at /course/cs5500f13/bin directory
-     * with the -a option to convert to a mono MP3 file.
-     */
-    private static File convertMP3Mono(File file) {
-        File dest_file = new File("mp3tmp/" + file.getName());
-        if (dest_file.isFile() && checkWave(file)) {
-            return dest_file;
-        } else {
-            try {
-                ProcessBuilder pb = new ProcessBuilder("/course/cs5500f13/bin/lame",
-                        "-V2", "-a", "--mp3input", 
-                        file.getAbsolutePath(),
-                        "mp3tmp/" + file.getName());
-                pb.redirectErrorStream(true);
-                Process p = pb.start();
-                String line = null;
-                InputStreamReader isr = new InputStreamReader(
-                        p.getInputStream());
-                BufferedReader br = new BufferedReader(isr);
-                while ((line = br.readLine()) != null) {
-                }
-                int rc = p.waitFor();
-                dest_file = new File("mp3tmp/" + file.getName());
-            } catch (IOException e) {
-                System.err.println("ERROR: MP3 to WAV conversion error");
-            } catch (InterruptedException ie) {
-                System.err.println("ERROR: MP3 to WAV conversion error");
-            }
+    private static class TrackWeigher implements LruCache.Weigher<Track> {
+        public long weigh(Track track) {
+            return track.memoryBytes();
         }
+    }
 
-        return dest_file;
+    // weight of a cached comparison result, keyed by a pair of paths
+    private static class ResultWeigher implements LruCache.Weigher<Float> {
+        public long weigh(Float seconds) {
+            return 256;
+        }
     }
 }
@@ -0,0 +1,195 @@
+
+/*
+ * Recognises the audio formats supported by the analyser (RIFF/WAVE and
+ * MPEG Layer III) by looking at the first few KB of a file, instead of
+ * forking the UNIX file utility for every check.
+ *
+ * The detected format is remembered per file (keyed by absolute path and
+ * validated against the file's length and modification time), so the rest
+ * of the pipeline can ask as often as it likes and the file is only read
+ * once. At most MAX_DETECTED files are remembered, the ones asked about
+ * longest ago being forgotten first, so a daemon that sees new files for
+ * ever does not grow without bound.
+ */
+import java.io.*;
+
+public class AudioFormatSniffer {
+
+    public enum Format {
+        WAVE, MP3, UNKNOWN
+    }
+
+    // number of bytes inspected at the start of the file and after an ID3 tag
+    private static final int PROBE_SIZE = 4096;
+
+    private static final int[] MPEG1_BITRATES = { 0, 32, 40, 48, 56, 64, 80,
+            96, 112, 128, 160, 192, 224, 256, 320 };
+    private static final int[] MPEG2_BITRATES = { 0, 8, 16, 24, 32, 40, 48,
+            56, 64, 80, 96, 112, 128, 144, 160 };
+    private static final int[][] SAMPLE_RATES = { { 11025, 12000, 8000 }, // 2.5
+            null, // reserved
+            { 22050, 24000, 16000 }, // MPEG-2
+            { 44100, 48000, 32000 } }; // MPEG-1
+
+    // files whose format is remembered
+    static final int MAX_DETECTED = 16384;
+
+    // weighs every entry as 1, so the budget is a number of entries
+    private static final LruCache<String, Entry> detected = new LruCache<String, Entry>(
+            MAX_DETECTED, new LruCache.Weigher<Entry>() {
+                public long weigh(Entry e) {
+                    return 1;
+                }
+            });
+
+    private static class Entry {
+        final long length;
+        final long lastModified;
+        final Format format;
+
+        Entry(long length, long lastModified, Format format) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.format = format;
+        }
+    }
+
+    /*
+     * Given a file, returns its detected audio format. The result is cached,
+     * so repeated calls for an unchanged file do not touch the disk again.
+     */
+    public static Format detect(File f) throws IOException {
+        String key = f.getAbsolutePath();
+        long length = f.length();
+        long lastModified = f.lastModified();
+        Entry e = detected.get(key);
+        if (e != null && e.length == length && e.lastModified == lastModified) {
+            return e.format;
+        }
+        Format format = sniff(f);
+        detected.put(key, new Entry(length, lastModified, format));
+        return format;
+    }
+
+    /*
+     * Reads the leading bytes of the file and decides on the format. An MP3
+     * may start with an ID3v2 tag, in which case the first audio frame is
+     * looked for right after the tag.
+     */
+    private static Format sniff(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] buf = new byte[PROBE_SIZE];
+            int n = readFully(raf, 0, buf);
+            if (isWave(buf, n)) {
+                return Format.WAVE;
+            }
+            long offset = 0;
+            if (n >= 10 && buf[0] == 'I' && buf[1] == 'D' && buf[2] == '3') {
+                offset = id3v2Length(buf);
+                n = readFully(raf, offset, buf);
+            }
+            if (isMP3(buf, n, offset > 0)) {
+                return Format.MP3;
+            }
+            return Format.UNKNOWN;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int readFully(RandomAccessFile raf, long pos, byte[] buf)
+            throws IOException {
+        raf.seek(pos);
+        int total = 0;
+        while (total < buf.length) {
+            int r = raf.read(buf, total, buf.length - total);
+            if (r < 0) {
+                break;
+            }
+            total += r;
+        }
+        return total;
+    }
+
+    // "RIFF" <size> "WAVE"
+    private static boolean isWave(byte[] buf, int n) {
+        return n >= 12 && buf[0] == 'R' && buf[1] == 'I' && buf[2] == 'F'
+                && buf[3] == 'F' && buf[8] == 'W' && buf[9] == 'A'
+                && buf[10] == 'V' && buf[11] == 'E';
+    }
+
+    /*
+     * Total length of an ID3v2 tag, including its 10 byte header and the
+     * optional footer. The tag size is stored as a 28 bit syncsafe integer.
+     */
+    private static long id3v2Length(byte[] buf) {
+        long size = ((buf[6] & 0x7f) << 21) | ((buf[7] & 0x7f) << 14)
+                | ((buf[8] & 0x7f) << 7) | (buf[9] & 0x7f);
+        boolean footer = (buf[5] & 0x10) != 0;
+        return 10 + size + (footer ? 10 : 0);
+    }
+
+    /*
+     * Looks for an MPEG-1/2/2.5 Layer III frame header. A header at the very
+     * start of the probe is accepted on its own (that is what the file
+     * utility does); anywhere else we additionally require the next frame to
+     * start where the first one ends, so random data is not mistaken for
+     * audio.
+     */
+    private static boolean isMP3(byte[] buf, int n, boolean afterTag) {
+        for (int i = 0; i + 4 <= n; i++) {
+            int len = frameLength(buf, i);
+            if (len < 0) {
+                continue;
+            }
+            if (i == 0 && !afterTag) {
+                return true;
+            }
+            int next = i + len;
+            if (len == 0 || next + 4 > n) {
+                // free format or frame runs past the probe, nothing to verify
+                if (i == 0) {
+                    return true;
+                }
+                continue;
+            }
+            if (frameLength(buf, next) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns the length in bytes of the Layer III frame whose header starts
+     * at buf[i], 0 for a free format frame, or -1 if there is no valid header
+     * at that position.
+     */
+    private static int frameLength(byte[] buf, int i) {
+        int b1 = buf[i] & 0xff;
+        int b2 = buf[i + 1] & 0xff;
+        int b3 = buf[i + 2] & 0xff;
+        if (b1 != 0xff || (b2 & 0xe0) != 0xe0) {
+            return -1;
+        }
+        int version = (b2 >> 3) & 0x03;
+        int layer = (b2 >> 1) & 0x03;
+        int bitrateIndex = (b3 >> 4) & 0x0f;
+        int rateIndex = (b3 >> 2) & 0x03;
+        int padding = (b3 >> 1) & 0x01;
+        // version 01 is reserved, layer bits 01 mean Layer III
+        if (version == 1 || layer != 1 || bitrateIndex == 0x0f
+                || rateIndex == 3) {
+            return -1;
+        }
+        if (bitrateIndex == 0) {
+            return 0;
+        }
+        int sampleRate = SAMPLE_RATES[version][rateIndex];
+        if (version == 3) {
+            return 144000 * MPEG1_BITRATES[bitrateIndex] / sampleRate + padding;
+        }
+        return 72000 * MPEG2_BITRATES[bitrateIndex] / sampleRate + padding;
+    }
+}
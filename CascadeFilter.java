@@ -0,0 +1,199 @@
+
+/*
+ * Cheap tests that rule a pair of tracks out before the full fingerprint
+ * searches run, tier by tier, from the cheapest to the dearest. Every tier
+ * works from statistics computed once per track when it was prepared
+ * (its length, whole-file RMS, rising window counts per second and
+ * landmarks), and counts the pairs it pruned. Every pair compared is
+ * counted, including those answered from the caches of earlier results
+ * without reaching any tier past loudness.
+ *
+ * Like FingerprintIndex the tiers are lossless: a pair is only pruned if
+ * the search it skips could not have matched.
+ *
+ * loudness   Pairs of equally long tracks whose whole-file RMS agree are
+ *            reported as a match by checkFileMatch without any search.
+ * duration   An excerpt can only be found in a track at least as long.
+ * rises      With S windows in the excerpt and k = threshold(S) tolerated
+ *            differences, the excerpt and the S windows it is compared
+ *            with at any offset must have numbers of rising windows within
+ *            k of each other. The whole tracks bound that number first.
+ * seconds    ... then the prefix counts per second (Track.RISE_BLOCK
+ *            windows) bound it for every second of offsets in turn.
+ * landmarks  A landmark match needs minHits() query landmarks agreeing on
+ *            one offset, so the query needs that many landmarks, and at
+ *            least that many pairs of equal hashes must exist between the
+ *            two tracks.
+ *
+ * The counters may be updated from several threads at once.
+ */
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CascadeFilter {
+
+    private final AtomicLong pairs = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+    private final AtomicLong loudness = new AtomicLong();
+    private final AtomicLong duration = new AtomicLong();
+    private final AtomicLong rises = new AtomicLong();
+    private final AtomicLong seconds = new AtomicLong();
+    private final AtomicLong envelopeSearches = new AtomicLong();
+    private final AtomicLong landmarks = new AtomicLong();
+    private final AtomicLong landmarkSearches = new AtomicLong();
+    private final AtomicLong pruned = new AtomicLong();
+
+    // counts a pair given to the filter
+    public void pair() {
+        pairs.incrementAndGet();
+    }
+
+    // counts a pair whose result is known from an earlier pair
+    public void cachedPair() {
+        cached.incrementAndGet();
+    }
+
+    /*
+     * True if the pair is matched on its whole-file RMS alone, so its
+     * fingerprints need not be searched at all.
+     */
+    public boolean sameRecording(Track t1, Track t2) {
+        if (t1.getSampleCount() == t2.getSampleCount()
+                && Math.abs(t1.getRms() - t2.getRms()) < 1.0) {
+            loudness.incrementAndGet();
+            pruned.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * False if the envelope of smaller can not occur in that of larger
+     * within the tolerance of ExcerptSearch.
+     */
+    public boolean mayMatchEnvelope(Track smaller, Track larger) {
+        int s = smaller.getEnvelope().length();
+        int l = larger.getEnvelope().length();
+        if (s == 0 || s > l) {
+            duration.incrementAndGet();
+            return false;
+        }
+        int k = ExcerptSearch.threshold(s);
+        int c = smaller.getRises();
+        int total = larger.getRises();
+        if (c + k < Math.max(0, total - (l - s))
+                || c - k > Math.min(s, total)) {
+            rises.incrementAndGet();
+            return false;
+        }
+        if (!mayMatchSeconds(c, k, s, larger)) {
+            seconds.incrementAndGet();
+            return false;
+        }
+        envelopeSearches.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * Bounds the rising windows of larger under the excerpt for the
+     * offsets of each second, bB .. bB + B - 1, from the prefix counts P
+     * at whole seconds: at least P(floor(oMin + s)) - P(ceil(oMax)) and at
+     * most P(ceil(oMax + s)) - P(floor(oMin)).
+     */
+    private static boolean mayMatchSeconds(int c, int k, int s, Track larger) {
+        int block = Track.RISE_BLOCK;
+        int last = larger.getEnvelope().length() - s;
+        for (int oMin = 0; oMin <= last; oMin += block) {
+            int oMax = Math.min(oMin + block - 1, last);
+            int lo = larger.getRisesBefore(floor(oMin + s, block))
+                    - larger.getRisesBefore(ceil(oMax, block));
+            int hi = larger.getRisesBefore(ceil(oMax + s, block))
+                    - larger.getRisesBefore(oMin);
+            if (c + k >= lo && c - k <= hi) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int floor(int x, int block) {
+        return x / block * block;
+    }
+
+    private static int ceil(int x, int block) {
+        return (x + block - 1) / block * block;
+    }
+
+    /*
+     * False if the landmarks of smaller can not align with those of larger
+     * (see LandmarkFingerprint.align).
+     */
+    public boolean mayMatchLandmarks(Track smaller, Track larger) {
+        LandmarkFingerprint query = smaller.getLandmarks();
+        LandmarkFingerprint reference = larger.getLandmarks();
+        int needed = query.minHits();
+        if (query.size() < needed || reference.size() == 0
+                || Math.abs(query.getFrameSeconds()
+                        - reference.getFrameSeconds()) > 1e-9
+                || sharedHashes(query, reference, needed) < needed) {
+            landmarks.incrementAndGet();
+            return false;
+        }
+        landmarkSearches.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * Number of (query, reference) landmark pairs with equal hashes, which
+     * bounds the votes any offset can get; counting stops at limit.
+     */
+    private static int sharedHashes(LandmarkFingerprint query,
+            LandmarkFingerprint reference, int limit) {
+        int shared = 0;
+        int q = 0;
+        while (q < query.size() && shared < limit) {
+            int h = query.hash(q);
+            int n = 0;
+            while (q < query.size() && query.hash(q) == h) {
+                q++;
+                n++;
+            }
+            int r = reference.find(h);
+            while (r < reference.size() && reference.hash(r) == h) {
+                shared += n;
+                r++;
+            }
+        }
+        return shared;
+    }
+
+    // counts a pair for which neither search ran
+    public void prunedPair() {
+        pruned.incrementAndGet();
+    }
+
+    // copies the counters to Stats, for its dump
+    public void publish() {
+        Stats.set("cascade.pairs", pairs.get());
+        Stats.set("cascade.pruned", pruned.get());
+        Stats.set("cascade.cached", cached.get());
+        Stats.set("cascade.loudness", loudness.get());
+        Stats.set("cascade.duration", duration.get());
+        Stats.set("cascade.rises", rises.get());
+        Stats.set("cascade.seconds", seconds.get());
+        Stats.set("cascade.landmarks", landmarks.get());
+        Stats.set("cascade.envelopeSearches", envelopeSearches.get());
+        Stats.set("cascade.landmarkSearches", landmarkSearches.get());
+    }
+
+    public void report(PrintStream s) {
+        s.println("STATS: cascade " + pairs + " pairs, " + pruned
+                + " pruned without any search, " + cached
+                + " answered from the caches");
+        s.println("STATS: cascade loudness " + loudness + ", duration "
+                + duration + ", rises " + rises + ", seconds " + seconds
+                + " pruned; " + envelopeSearches + " envelope searches");
+        s.println("STATS: cascade landmarks " + landmarks + " pruned; "
+                + landmarkSearches + " landmark searches");
+    }
+}
@@ -0,0 +1,124 @@
+
+/*
+ * Computes the rise/fall energy envelope of a recording in one pass, as the
+ * samples arrive.
+ *
+ * The recording is cut into windows of 1/10th of a second. For every window
+ * the RMS of the sample magnitudes is computed from a running sum of
+ * squares, and one bit is emitted: true if the RMS is greater than or equal
+ * to the RMS of the previous window (the first window is compared against
+ * 0), false otherwise. A window is only emitted once at least one more
+ * sample has arrived after it, which is how newRMS has always cut its
+ * windows, so existing fingerprints and matches are unchanged.
+ *
+ * The 10 ms windows of the EnvelopePyramid are cut the same way from the
+ * samples, on their own grid.
+ *
+ * As a MonoPcmSink it can be attached directly to a decoder, so decoding
+ * and fingerprinting happen together and no magnitudes are stored. A
+ * block is summed a window at a time by Kernels, in integers, so the
+ * window energies are exactly those of the sample by sample sums.
+ */
+public class EnvelopeFingerprinter implements MonoPcmSink {
+
+    public static final int WINDOWS_PER_SECOND = 10;
+
+    private int sampleRate;
+    private Level envelope = new Level(0);
+    private Level fine = new Level(0);
+    private long total;
+
+    /*
+     * Magnitude of a 16 bit sample as used for fingerprinting: the absolute
+     * value of its high byte.
+     */
+    public static int magnitude(short sample) {
+        return Math.abs(sample >> 8);
+    }
+
+    public void start(int sampleRate) {
+        this.sampleRate = sampleRate;
+        envelope = new Level(sampleRate / WINDOWS_PER_SECOND);
+        fine = new Level(sampleRate / EnvelopePyramid.FINE_WINDOWS_PER_SECOND);
+        total = 0;
+    }
+
+    public void write(short[] samples, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            envelope.flush();
+            fine.flush();
+            int n = Math.min(envelope.room(end - i), fine.room(end - i));
+            long squares = Kernels.INSTANCE.sumOfSquaredMagnitudes(samples,
+                    i, i + n);
+            total += squares;
+            envelope.add(squares, n);
+            fine.add(squares, n);
+            i += n;
+        }
+    }
+
+    public void finish() {
+        // a window that ends exactly at the last sample is not emitted
+        envelope.pending = false;
+        fine.pending = false;
+    }
+
+    // sum of the squared magnitudes of all samples so far
+    public long getSumOfSquares() {
+        return total;
+    }
+
+    // the rise/fall bits emitted so far, one per window
+    public Fingerprint getFingerprint() {
+        return envelope.bits;
+    }
+
+    // both levels emitted so far
+    public EnvelopePyramid getPyramid() {
+        return new EnvelopePyramid(sampleRate, envelope.bits, fine.bits);
+    }
+
+    // the rise/fall bits of one window size
+    private static class Level {
+        final int window;
+        int filled;
+        long sum;
+        double previousRms;
+        boolean pendingBit;
+        boolean pending;
+        final Fingerprint bits = new Fingerprint();
+
+        Level(int window) {
+            this.window = window;
+        }
+
+        // emits the window completed before this sample, if there is one
+        void flush() {
+            if (pending) {
+                bits.add(pendingBit);
+                pending = false;
+            }
+        }
+
+        // how many of the next available samples fit in the window
+        int room(int available) {
+            // (a window of 0 samples, below 10 Hz, never ends)
+            return window > 0 ? Math.min(available, window - filled) : available;
+        }
+
+        void add(long squares, int n) {
+            sum += squares;
+            filled += n;
+            if (filled == window) {
+                double rms = Math.sqrt((double) sum / window);
+                pendingBit = previousRms <= rms;
+                previousRms = rms;
+                pending = true;
+                sum = 0;
+                filled = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+
+/*
+ * The rise/fall envelope of a recording at two resolutions, both computed
+ * in the same pass by EnvelopeFingerprinter:
+ *
+ * envelope  the 100 ms windows (EnvelopeFingerprinter.WINDOWS_PER_SECOND)
+ *           that decide whether an excerpt matches.
+ * fine      10 ms windows (FINE_WINDOWS_PER_SECOND), on their own grid of
+ *           sampleRate / 100 samples, which locate a match to 10 ms.
+ *
+ * Each level is a Fingerprint of its own. ExcerptSearch decides at the
+ * envelope level and refines the offset at the fine level. There is no
+ * level coarser than the envelope: the distance of longer windows does not
+ * bound that of the 100 ms windows, so it could not rule offsets out, and
+ * the search tries every offset of the envelope.
+ */
+public class EnvelopePyramid {
+
+    public static final int FINE_WINDOWS_PER_SECOND = 100;
+
+    private final int sampleRate;
+    private final Fingerprint envelope;
+    private final Fingerprint fine;
+
+    public EnvelopePyramid(int sampleRate, Fingerprint envelope,
+            Fingerprint fine) {
+        this.sampleRate = sampleRate;
+        this.envelope = envelope;
+        this.fine = fine;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public Fingerprint getEnvelope() {
+        return envelope;
+    }
+
+    public Fingerprint getFine() {
+        return fine;
+    }
+
+    // samples per envelope window
+    public int getWindow() {
+        return sampleRate / EnvelopeFingerprinter.WINDOWS_PER_SECOND;
+    }
+
+    // samples per fine window
+    public int getFineWindow() {
+        return sampleRate / FINE_WINDOWS_PER_SECOND;
+    }
+
+    // approximate number of bytes held by the two levels
+    public long memoryBytes() {
+        return 32 + envelope.memoryBytes() + fine.memoryBytes();
+    }
+}
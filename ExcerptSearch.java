@@ -0,0 +1,179 @@
+
+/*
+ * Finds where a short fingerprint (an excerpt) occurs inside a longer one.
+ *
+ * The excerpt is compared against the long fingerprint at every offset. At
+ * each offset the Hamming distance is computed 64 windows at a time from
+ * the packed words (see Fingerprint.distance), and the comparison is
+ * abandoned as soon as it can no longer beat the best offset found so far
+ * or the tolerance. Offsets that do not match are therefore rejected after
+ * one or two words, which keeps the search close to linear in the length
+ * of the long fingerprint, with no backtracking.
+ *
+ * An excerpt of n windows matches at an offset if at most n/20 + 2 of its
+ * windows differ there (5% plus two). Among all such offsets the one with
+ * the smallest distance is reported; ties go to the earliest offset.
+ *
+ * Given the EnvelopePyramids of the two recordings, the offset found at
+ * 100 ms is then refined to the closest 10 ms window within 100 ms of it
+ * where the 10 ms windows also match, and reported in seconds to 10 ms;
+ * refine does the same for an offset found some other way, such as by the
+ * landmarks.
+ */
+public class ExcerptSearch {
+
+    public static class Result {
+        private final int offset;
+        private final int distance;
+        private final float seconds;
+
+        Result(int offset, int distance) {
+            this(offset, distance, (float) offset
+                    / (float) EnvelopeFingerprinter.WINDOWS_PER_SECOND);
+        }
+
+        Result(int offset, int distance, float seconds) {
+            this.offset = offset;
+            this.distance = distance;
+            this.seconds = seconds;
+        }
+
+        public boolean isMatch() {
+            return offset >= 0;
+        }
+
+        // offset of the match in windows, or -1 if there is none
+        public int getOffset() {
+            return offset;
+        }
+
+        // number of differing windows at the offset
+        public int getDistance() {
+            return distance;
+        }
+
+        // offset of the match in seconds, to 10 ms once refined
+        public float getSeconds() {
+            return seconds;
+        }
+    }
+
+    private static final Result NO_MATCH = new Result(-1, -1);
+
+    // the number of differing windows tolerated for an excerpt of n windows
+    public static int threshold(int n) {
+        return n / 20 + 2;
+    }
+
+    /*
+     * Returns the best offset of small inside large within the tolerance,
+     * or a result that is not a match.
+     */
+    public static Result search(Fingerprint small, Fingerprint large) {
+        int n = small.length();
+        if (n == 0 || large.length() < n) {
+            return NO_MATCH;
+        }
+        int last = large.length() - n;
+        int bestOffset = -1;
+        int bestDistance = threshold(n) + 1;
+        for (int s = 0; s <= last; s++) {
+            int d = large.distance(small, s, bestDistance - 1);
+            if (d < bestDistance) {
+                bestDistance = d;
+                bestOffset = s;
+                if (d == 0) {
+                    break;
+                }
+            }
+        }
+        if (bestOffset < 0) {
+            return NO_MATCH;
+        }
+        return new Result(bestOffset, bestDistance);
+    }
+
+    /*
+     * Same as search(small.getEnvelope(), large.getEnvelope()), with the
+     * offset refined to 10 ms.
+     */
+    public static Result search(EnvelopePyramid small, EnvelopePyramid large) {
+        Result r = search(small.getEnvelope(), large.getEnvelope());
+        return r.isMatch() ? refine(small, large, r) : r;
+    }
+
+    /*
+     * r with its offset in seconds refined at the fine level if it can be,
+     * or else to 100 ms. Either way the time is that of the first sample of
+     * the window, which is not quite offset / 10 seconds when a second is
+     * not a whole number of windows (11025 Hz: 1102 samples a window).
+     */
+    private static Result refine(EnvelopePyramid small, EnvelopePyramid large,
+            Result r) {
+        double estimate = (double) r.getOffset() * large.getWindow()
+                / large.getSampleRate();
+        float seconds = refine(small, large, estimate);
+        if (seconds < 0) {
+            seconds = Math.round(estimate
+                    * EnvelopeFingerprinter.WINDOWS_PER_SECOND)
+                    / (float) EnvelopeFingerprinter.WINDOWS_PER_SECOND;
+        }
+        return new Result(r.getOffset(), r.getDistance(), seconds);
+    }
+
+    /*
+     * Refines an estimate, in seconds, of where small starts in large that
+     * is good to 100 ms (one envelope window): among the 10 ms windows
+     * starting within 100 ms of it, the one with the fewest differences,
+     * the closest to the estimate of those, if that is within the
+     * tolerance. Returns its offset in seconds rounded to 10 ms, or -1 if
+     * no window there matches.
+     */
+    public static float refine(EnvelopePyramid small, EnvelopePyramid large,
+            double estimate) {
+        Fingerprint s = small.getFine();
+        Fingerprint l = large.getFine();
+        int w = large.getFineWindow();
+        int window = large.getWindow();
+        int n = s.length();
+        if (n == 0 || w == 0 || l.length() < n) {
+            return -1;
+        }
+        long center = Math.round(estimate * large.getSampleRate());
+        int from = (int) Math.max(0, (center - window + w - 1) / w);
+        int to = (int) Math.min(l.length() - n, (center + window) / w);
+        int bestOffset = -1;
+        int bestDistance = threshold(n) + 1;
+        long bestGap = Long.MAX_VALUE;
+        for (int f = from; f <= to; f++) {
+            int d = l.distance(s, f, bestDistance);
+            long gap = Math.abs((long) f * w - center);
+            if (d < bestDistance || (d == bestDistance && gap < bestGap)) {
+                bestDistance = d;
+                bestOffset = f;
+                bestGap = gap;
+            }
+        }
+        if (bestOffset < 0) {
+            return -1;
+        }
+        return Math.round((double) bestOffset * w * 100
+                / large.getSampleRate()) / 100f;
+    }
+
+    /*
+     * Returns the exact distance of small at every offset of large, the
+     * full alignment profile. Empty if small is longer than large.
+     */
+    public static int[] distances(Fingerprint small, Fingerprint large) {
+        int last = large.length() - small.length();
+        if (last < 0) {
+            return new int[0];
+        }
+        int[] d = new int[last + 1];
+        for (int s = 0; s <= last; s++) {
+            d[s] = large.distance(small, s);
+        }
+        return d;
+    }
+}
@@ -22,19 +22,9 @@
 
 public class FFT {
 
-    static Complex[] c;
-
-    public static Complex[] getC() {
-        return c;
-    }
-
-
-    public static void setC(Complex[] comp) {
-        c = comp;
-    }
-
-
     // compute the FFT of x[], assuming its length is a power of 2
+    // (a thin adapter over FFTPlan, which works on primitive arrays);
+    // keeps no state, so it is safe to call from several threads
     public static void fft(Complex[] x) {
 
         // check that length is a power of 2
@@ -43,28 +33,15 @@ public class FFT {
             throw new RuntimeException("N is not a power of 2");
         }
 
-        // bit reversal permutation
-        int shift = 1 + Integer.numberOfLeadingZeros(N);
+        double[] re = new double[N];
+        double[] im = new double[N];
         for (int k = 0; k < N; k++) {
-            int j = Integer.reverse(k) >>> shift;
-            if (j > k) {
-                Complex temp = x[j];
-                x[j] = x[k];
-                x[k] = temp;
-            }
+            re[k] = x[k].re();
+            im[k] = x[k].im();
         }
-
-        // butterfly updates
-        for (int L = 2; L <= N; L = L+L) {
-            for (int k = 0; k < L/2; k++) {
-                double kth = -2 * k * Math.PI / L;
-                Complex w = new Complex(Math.cos(kth), Math.sin(kth));
-                for (int j = 0; j < N/L; j++) {
-                    Complex tao = w.times(x[j*L + k + L/2]);
-                    x[j*L + k + L/2] = x[j*L + k].minus(tao); 
-                    x[j*L + k]       = x[j*L + k].plus(tao); 
-                }
-            }
+        FFTPlan.forSize(N).transform(re, im);
+        for (int k = 0; k < N; k++) {
+            x[k] = new Complex(re[k], im[k]);
         }
     }
 
@@ -91,9 +68,4 @@ public class FFT {
 
     }
 
-    static void doFFT(Complex[] x){
-        setC(x);
-        fft(x);
-    }
-
 }
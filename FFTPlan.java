@@ -0,0 +1,217 @@
+
+/*************************************************************************
+ *  Dependencies: none
+ *
+ *  A precomputed plan for in-place FFTs of one power of 2 size N.
+ *
+ *  The data is held in split arrays, re[] and im[], instead of Complex
+ *  objects. The twiddle factors exp(-2 pi i k / N) and the bit reversal
+ *  permutation are computed once when the plan is created, so a transform
+ *  neither calls Math.cos / Math.sin nor allocates anything. Plans are
+ *  cached per size and immutable, so one plan can be shared by any number
+ *  of threads.
+ *
+ *  realForward() transforms N real samples with one complex FFT of size
+ *  N/2, about twice as fast as transforming them as complex numbers.
+ *
+ *  Uses the same non-recursive Cooley-Tukey algorithm as FFT.java.
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class FFTPlan {
+
+    private static final ConcurrentHashMap<Integer, FFTPlan> plans = new ConcurrentHashMap<Integer, FFTPlan>();
+
+    private final int n;
+    // twiddle factors exp(-2 pi i k / N) for k < N/2
+    private final double[] wr;
+    private final double[] wi;
+    // pairs of indices swapped by the bit reversal permutation
+    private final int[] swaps;
+    // plan for N/2, used by realForward
+    private FFTPlan half;
+
+    private FFTPlan(int n) {
+        this.n = n;
+        int h = Math.max(1, n / 2);
+        wr = new double[h];
+        wi = new double[h];
+        for (int k = 0; k < h; k++) {
+            double kth = -2 * k * Math.PI / n;
+            wr[k] = Math.cos(kth);
+            wi[k] = Math.sin(kth);
+        }
+        int count = 0;
+        int shift = 1 + Integer.numberOfLeadingZeros(n);
+        int[] s = new int[n];
+        for (int k = 0; k < n && n > 1; k++) {
+            int j = Integer.reverse(k) >>> shift;
+            if (j > k) {
+                s[count++] = k;
+                s[count++] = j;
+            }
+        }
+        swaps = Arrays.copyOf(s, count);
+    }
+
+    /*
+     * Returns the (cached) plan for the given size, which must be a power
+     * of 2.
+     */
+    public static FFTPlan forSize(int n) {
+        if (n < 1 || Integer.highestOneBit(n) != n) {
+            throw new RuntimeException("N is not a power of 2");
+        }
+        FFTPlan plan = plans.get(n);
+        if (plan == null) {
+            plan = new FFTPlan(n);
+            FFTPlan existing = plans.putIfAbsent(n, plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /*
+     * Forward FFT of re[0..N) + i im[0..N), in place.
+     */
+    public void transform(double[] re, double[] im) {
+        bitReverse(re, im);
+        for (int size = 2; size <= n; size <<= 1) {
+            butterflies(re, im, size, 0, n);
+        }
+    }
+
+    /*
+     * Inverse FFT of re[0..N) + i im[0..N), in place, scaled by 1/N so that
+     * inverse(transform(x)) == x.
+     */
+    public void inverse(double[] re, double[] im) {
+        for (int k = 0; k < n; k++) {
+            im[k] = -im[k];
+        }
+        transform(re, im);
+        double scale = 1.0 / n;
+        for (int k = 0; k < n; k++) {
+            re[k] *= scale;
+            im[k] = -im[k] * scale;
+        }
+    }
+
+    /*
+     * Forward FFT of the N real samples x[0..N). The non-redundant half of
+     * the spectrum, bins 0..N/2, is written to re[] and im[], which must
+     * have room for N/2 + 1 values. x is not modified.
+     */
+    public void realForward(double[] x, double[] re, double[] im) {
+        if (n == 1) {
+            re[0] = x[0];
+            im[0] = 0;
+            return;
+        }
+        int h = n / 2;
+        // pack even samples into the real and odd samples into the
+        // imaginary part of a half size complex signal
+        for (int k = 0; k < h; k++) {
+            re[k] = x[2 * k];
+            im[k] = x[2 * k + 1];
+        }
+        halfPlan().transform(re, im);
+        // split the half size spectrum Z into the spectrum X of x:
+        // X[k] = E[k] + W^k O[k], X[h-k] = conj(E[k] - W^k O[k]) with
+        // E[k] = (Z[k] + conj(Z[h-k])) / 2, O[k] = (Z[k] - conj(Z[h-k])) / 2i
+        double r0 = re[0];
+        double i0 = im[0];
+        re[0] = r0 + i0;
+        im[0] = 0;
+        re[h] = r0 - i0;
+        im[h] = 0;
+        for (int k = 1, m = h - 1; k <= m; k++, m--) {
+            double ar = re[k], ai = im[k];
+            double br = re[m], bi = im[m];
+            double er = (ar + br) * 0.5, ei = (ai - bi) * 0.5;
+            double or = (ai + bi) * 0.5, oi = (br - ar) * 0.5;
+            double tr = wr[k] * or - wi[k] * oi;
+            double ti = wr[k] * oi + wi[k] * or;
+            re[k] = er + tr;
+            im[k] = ei + ti;
+            re[m] = er - tr;
+            im[m] = ti - ei;
+        }
+    }
+
+    private FFTPlan halfPlan() {
+        FFTPlan p = half;
+        if (p == null) {
+            p = forSize(n / 2);
+            half = p;
+        }
+        return p;
+    }
+
+    // bit reversal permutation
+    void bitReverse(double[] re, double[] im) {
+        bitReverse(re, im, 0, swapCount());
+    }
+
+    // number of swaps done by the bit reversal permutation
+    int swapCount() {
+        return swaps.length / 2;
+    }
+
+    /*
+     * Performs swaps [from, to) of the bit reversal permutation. The swaps
+     * touch disjoint pairs of elements, so ranges can run concurrently.
+     */
+    void bitReverse(double[] re, double[] im, int from, int to) {
+        for (int s = 2 * from; s < 2 * to; s += 2) {
+            int k = swaps[s];
+            int j = swaps[s + 1];
+            double t = re[j];
+            re[j] = re[k];
+            re[k] = t;
+            t = im[j];
+            im[j] = im[k];
+            im[k] = t;
+        }
+    }
+
+    /*
+     * Butterfly updates of the stage that combines transforms of length
+     * size/2 into transforms of length size, for the blocks starting at
+     * from, from+size, ... up to (excluding) to.
+     */
+    void butterflies(double[] re, double[] im, int size, int from, int to) {
+        for (int start = from; start < to; start += size) {
+            butterflies(re, im, size, start, 0, size >>> 1);
+        }
+    }
+
+    /*
+     * Butterflies k in [kFrom, kTo) of the single block of the given stage
+     * that starts at start. Different k ranges touch disjoint elements.
+     */
+    void butterflies(double[] re, double[] im, int size, int start,
+            int kFrom, int kTo) {
+        int h = size >>> 1;
+        int step = n / size;
+        for (int k = kFrom, t = kFrom * step; k < kTo; k++, t += step) {
+            int a = start + k;
+            int b = a + h;
+            double tr = wr[t] * re[b] - wi[t] * im[b];
+            double ti = wr[t] * im[b] + wi[t] * re[b];
+            re[b] = re[a] - tr;
+            im[b] = im[a] - ti;
+            re[a] += tr;
+            im[a] += ti;
+        }
+    }
+}
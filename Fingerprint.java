@@ -0,0 +1,123 @@
+
+/*
+ * A rise/fall fingerprint packed 64 windows to a long: window i is bit
+ * (i % 64) of words[i / 64]. Bits past the end of the fingerprint are
+ * always zero.
+ *
+ * Fingerprints are compared with distance(), which XORs whole words and
+ * counts the differing windows with Long.bitCount, so 64 windows are
+ * compared per step instead of one boxed Boolean at a time, and a vector
+ * of such words per step where the CPU has SIMD registers (see Kernels).
+ */
+import java.util.*;
+
+public class Fingerprint {
+
+    private long[] words;
+    private int length;
+
+    public Fingerprint() {
+        this(64);
+    }
+
+    // creates an empty fingerprint with room for the given number of windows
+    public Fingerprint(int capacity) {
+        words = new long[Math.max(1, (capacity + 63) >>> 6)];
+    }
+
+    // a fingerprint of the given length made of already packed words
+    Fingerprint(long[] words, int length) {
+        this.words = words.length == 0 ? new long[1] : words;
+        this.length = length;
+    }
+
+    // appends the bit for the next window
+    public void add(boolean bit) {
+        if ((length >>> 6) == words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        if (bit) {
+            words[length >>> 6] |= 1L << (length & 63);
+        }
+        length++;
+    }
+
+    public boolean get(int i) {
+        return (words[i >>> 6] & (1L << (i & 63))) != 0;
+    }
+
+    // number of windows
+    public int length() {
+        return length;
+    }
+
+    // number of words holding the fingerprint
+    public int wordCount() {
+        return (length + 63) >>> 6;
+    }
+
+    public long word(int i) {
+        return words[i];
+    }
+
+    // approximate number of bytes held by this fingerprint
+    public long memoryBytes() {
+        return 16 + 16 + 8L * words.length;
+    }
+
+    /*
+     * Returns the 64 windows starting at the given (not necessarily word
+     * aligned) position as one word; positions past the end read as 0.
+     */
+    public long bitsAt(int from) {
+        return Kernels.bitsAt(words, from);
+    }
+
+    /*
+     * Hamming distance between small and the windows of this fingerprint
+     * starting at offset, i.e. the number of windows j in small for which
+     * small[j] != this[offset + j]. The caller must make sure that
+     * offset + small.length() <= length().
+     */
+    public int distance(Fingerprint small, int offset) {
+        return distance(small, offset, Integer.MAX_VALUE);
+    }
+
+    /*
+     * Same as distance(small, offset), but stops counting as soon as the
+     * distance exceeds limit; the value returned is then some number greater
+     * than limit.
+     */
+    public int distance(Fingerprint small, int offset, int limit) {
+        return Kernels.INSTANCE.distance(small.words, small.length, words,
+                offset, limit);
+    }
+
+    /*
+     * Prefix sums of the rising windows per block: element b is the number
+     * of set bits among windows 0 .. min(b * block, length()) - 1, for b up
+     * to and including the first block boundary at or past the end.
+     */
+    public int[] prefixCounts(int block) {
+        int blocks = (length + block - 1) / block;
+        int[] prefix = new int[blocks + 1];
+        for (int b = 0; b < blocks; b++) {
+            int c = 0;
+            for (int i = b * block; i < Math.min((b + 1) * block, length); i++) {
+                if (get(i)) {
+                    c++;
+                }
+            }
+            prefix[b + 1] = prefix[b] + c;
+        }
+        return prefix;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(get(i) ? 't' : 'f');
+        }
+        return sb.toString();
+    }
+}
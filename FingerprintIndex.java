@@ -0,0 +1,372 @@
+
+/*
+ * An inverted index over the fingerprints of a set of tracks, used to pick
+ * the pairs worth comparing instead of comparing every pair.
+ *
+ * Every window of every envelope fingerprint is posted under the KEY_BITS
+ * windows that start there, with the first window as the most significant
+ * bit, so the positions that start with any shorter run of windows are one
+ * contiguous range of the sorted postings. Every landmark hash likewise
+ * points to its (track, frame) positions. A track is then looked up once
+ * as an excerpt: the segments of its envelope vote for the diagonal (the
+ * offset inside the other track) they agree on, and so do its landmarks,
+ * in buckets of LANDMARK_BUCKET frames.
+ *
+ * The filter is lossless. An excerpt of S windows that differs from a
+ * track in at most k = ExcerptSearch.threshold(S) windows at some offset
+ * is cut into m disjoint segments of L = min(KEY_BITS, S / (k + 1))
+ * windows, m >= k + 1. Each differing window spoils at most one segment,
+ * so at least m - k segments agree exactly and vote for that offset.
+ * Every offset with that many votes is then checked with the Hamming
+ * distance at that one offset, which is cheap, so an excerpt long enough
+ * to be segmented is a candidate exactly where its envelope matches.
+ * Excerpts whose segments would be shorter than MIN_SEGMENT_BITS are
+ * compared with every longer track, since their segments would select
+ * most of the index anyway. Likewise a landmark match needs at least
+ * query.minHits() landmarks on one offset, so fewer votes for the bucket
+ * holding that offset rule it out. (Wider buckets let recurring notes pile
+ * up votes from many offsets.) Pairs of equally long tracks are always
+ * compared, since those are matched on their whole-file RMS.
+ *
+ * Votes are counted per lookup in a sorted list of the diagonals voted
+ * for, so a lookup costs in proportion to the postings it touches, not to
+ * the size of the index. Where notes recur across a collection, a lookup
+ * can touch more postings than there are diagonals; the votes are then
+ * counted in an array with one counter per diagonal instead, so their
+ * memory never exceeds that. Lookups may run on several threads at once.
+ *
+ * Besides the fingerprints themselves, which the index reads in place,
+ * it holds 8 bytes per envelope window and 8 bytes per landmark.
+ */
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class FingerprintIndex {
+
+    public static final int KEY_BITS = 20;
+    public static final int MIN_SEGMENT_BITS = 8;
+    public static final int LANDMARK_BUCKET = 2;
+
+    // bits of a posting below its key: the window, numbered across tracks
+    private static final int WINDOW_BITS = 40;
+
+    private final Track[] tracks;
+    // first window of each track, numbered across all tracks
+    private final long[] base;
+    // first offset bucket of each track, numbered across all tracks
+    private final int[] bucketBase;
+
+    // (key << WINDOW_BITS) | window, sorted
+    private final long[] postings;
+
+    // (landmark hash << 32) | landmark, sorted, the landmarks numbered
+    // across tracks in the (hash) order of their fingerprints
+    private final long[] landmarkPostings;
+    // first landmark of each track, numbered across all tracks
+    private final int[] landmarkBase;
+
+    // candidates found so far, by excerpt
+    private final AtomicReferenceArray<BitSet> candidates;
+
+    public FingerprintIndex(List<Track> trackList) {
+        tracks = trackList.toArray(new Track[trackList.size()]);
+        int n = tracks.length;
+        base = new long[n + 1];
+        bucketBase = new int[n + 1];
+        landmarkBase = new int[n + 1];
+        for (int t = 0; t < n; t++) {
+            base[t + 1] = base[t] + tracks[t].getEnvelope().length();
+            // offsets -1 .. frames
+            bucketBase[t + 1] = bucketBase[t] + tracks[t].getLandmarks()
+                    .frames() / LANDMARK_BUCKET + 1;
+            landmarkBase[t + 1] = landmarkBase[t]
+                    + tracks[t].getLandmarks().size();
+        }
+        postings = new long[(int) base[n]];
+        landmarkPostings = new long[landmarkBase[n]];
+        int l = 0;
+        for (int t = 0; t < n; t++) {
+            Fingerprint fp = tracks[t].getEnvelope();
+            for (int p = 0; p < fp.length(); p++) {
+                postings[(int) base[t] + p] = (key(fp, p, KEY_BITS)
+                        << WINDOW_BITS) | (base[t] + p);
+            }
+            LandmarkFingerprint lm = tracks[t].getLandmarks();
+            for (int i = 0; i < lm.size(); i++, l++) {
+                landmarkPostings[l] = ((long) lm.hash(i) << 32) | l;
+            }
+        }
+        Arrays.sort(postings);
+        Arrays.sort(landmarkPostings);
+        candidates = new AtomicReferenceArray<BitSet>(n);
+    }
+
+    public int size() {
+        return tracks.length;
+    }
+
+    public Track getTrack(int t) {
+        return tracks[t];
+    }
+
+    /*
+     * Returns false only if tracks a and b can not match, neither on their
+     * envelopes nor on their landmarks.
+     */
+    public boolean mayMatch(int a, int b) {
+        long na = tracks[a].getSampleCount();
+        long nb = tracks[b].getSampleCount();
+        if (na == nb) {
+            return true;
+        }
+        return na < nb ? candidates(a).get(b) : candidates(b).get(a);
+    }
+
+    /*
+     * Returns the (longer) tracks that track q may be an excerpt of.
+     */
+    public BitSet candidates(int q) {
+        BitSet found = candidates.get(q);
+        if (found == null) {
+            found = new BitSet(tracks.length);
+            envelopeCandidates(q, found);
+            landmarkCandidates(q, found);
+            candidates.set(q, found);
+        }
+        return found;
+    }
+
+    private void envelopeCandidates(int q, BitSet found) {
+        Fingerprint small = tracks[q].getEnvelope();
+        int s = small.length();
+        if (s == 0) {
+            return;
+        }
+        int k = ExcerptSearch.threshold(s);
+        int bits = Math.min(KEY_BITS, s / (k + 1));
+        long n = tracks[q].getSampleCount();
+        if (bits < MIN_SEGMENT_BITS) {
+            for (int t = 0; t < tracks.length; t++) {
+                if (tracks[t].getSampleCount() > n
+                        && tracks[t].getEnvelope().length() >= s) {
+                    found.set(t);
+                }
+            }
+            return;
+        }
+        int segments = s / bits;
+        int minHits = segments - k;
+        Votes votes = new Votes(base[tracks.length]);
+        for (int j = 0; j < segments; j++) {
+            int p = j * bits;
+            long first = key(small, p, bits) << (KEY_BITS - bits);
+            long last = first + (1L << (KEY_BITS - bits));
+            for (int r = find(postings, first << WINDOW_BITS);
+                    r < postings.length && postings[r] >>> WINDOW_BITS < last;
+                    r++) {
+                // where the excerpt starts if this segment is at the posting
+                long diagonal = (postings[r] & ((1L << WINDOW_BITS) - 1)) - p;
+                if (diagonal >= 0) {
+                    votes.add(diagonal);
+                }
+            }
+        }
+        votes.finish();
+        while (votes.next()) {
+            long diagonal = votes.vote();
+            if (votes.hits() < minHits) {
+                continue;
+            }
+            int t = trackOf(diagonal);
+            // the whole excerpt has to lie inside the track, and match there
+            if (!found.get(t) && diagonal + s <= base[t + 1]
+                    && tracks[t].getSampleCount() > n
+                    && tracks[t].getEnvelope().distance(small,
+                            (int) (diagonal - base[t]), k) <= k) {
+                found.set(t);
+            }
+        }
+    }
+
+    private void landmarkCandidates(int q, BitSet found) {
+        LandmarkFingerprint query = tracks[q].getLandmarks();
+        int minHits = query.minHits();
+        long n = tracks[q].getSampleCount();
+        Votes votes = new Votes(bucketBase[tracks.length]);
+        for (int i = 0; i < query.size(); i++) {
+            long hash = query.hash(i);
+            int r = find(landmarkPostings, hash << 32);
+            if (r == landmarkPostings.length
+                    || (landmarkPostings[r] >>> 32) != hash) {
+                continue;
+            }
+            // the postings of a hash are in track order
+            int t = trackOfLandmark((int) landmarkPostings[r]);
+            for (; r < landmarkPostings.length
+                    && (landmarkPostings[r] >>> 32) == hash; r++) {
+                int l = (int) landmarkPostings[r];
+                while (l >= landmarkBase[t + 1]) {
+                    t++;
+                }
+                if (tracks[t].getSampleCount() <= n) {
+                    continue;
+                }
+                // LandmarkFingerprint.align offsets, from -1 (see
+                // Arc5500.checkLandmarkMatch)
+                int offset = tracks[t].getLandmarks().frame(
+                        l - landmarkBase[t]) - query.frame(i);
+                if (offset >= -1) {
+                    votes.add(bucketBase[t] + (offset + 1) / LANDMARK_BUCKET);
+                }
+            }
+        }
+        votes.finish();
+        while (votes.next()) {
+            if (votes.hits() >= minHits) {
+                found.set(bucketOf((int) votes.vote()));
+            }
+        }
+    }
+
+    // index of the first element of the sorted array that is >= key
+    private static int find(long[] sorted, long key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // the track holding the given window, numbered across all tracks
+    private int trackOf(long window) {
+        int lo = 0;
+        int hi = tracks.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (base[mid] <= window) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // the track holding the given landmark, numbered across all tracks
+    private int trackOfLandmark(int landmark) {
+        // tracks without landmarks share their base with the next track
+        int t = Arrays.binarySearch(landmarkBase, landmark);
+        if (t < 0) {
+            return -t - 2;
+        }
+        while (landmarkBase[t + 1] == landmark) {
+            t++;
+        }
+        return t;
+    }
+
+    // the track holding the given offset bucket
+    private int bucketOf(int bucket) {
+        // every track has at least one bucket, so bucketBase increases
+        int t = Arrays.binarySearch(bucketBase, bucket);
+        return t >= 0 ? t : -t - 2;
+    }
+
+    /*
+     * The windows p .. p + bits - 1 as a number, window p the most
+     * significant bit; windows past the end read as 0.
+     */
+    private static long key(Fingerprint fp, int p, int bits) {
+        return Long.reverse(fp.bitsAt(p)) >>> (64 - bits);
+    }
+
+    /*
+     * The offsets voted for by one lookup, all in 0 .. range - 1: a list,
+     * counted once sorted, until it would take as much memory as a counter
+     * for every offset, from where the counters are used.
+     */
+    private static class Votes {
+        private final long range;
+        private long[] votes = new long[64];
+        private int size;
+        private int[] counts;
+        // where next() is, and what it found
+        private int at;
+        private long vote;
+        private int hits;
+
+        Votes(long range) {
+            this.range = range;
+        }
+
+        void add(long v) {
+            if (counts != null) {
+                counts[(int) v]++;
+                return;
+            }
+            if (size == votes.length) {
+                if (size >= range / 2 && range <= Integer.MAX_VALUE) {
+                    counts = new int[(int) range];
+                    for (int i = 0; i < size; i++) {
+                        counts[(int) votes[i]]++;
+                    }
+                    votes = null;
+                    counts[(int) v]++;
+                    return;
+                }
+                votes = Arrays.copyOf(votes, 2 * size);
+            }
+            votes[size++] = v;
+        }
+
+        // called once all votes are in, before next()
+        void finish() {
+            if (counts == null) {
+                Arrays.sort(votes, 0, size);
+            }
+            at = 0;
+        }
+
+        // moves to the next offset voted for, in order; false at the end
+        boolean next() {
+            if (counts != null) {
+                while (at < counts.length && counts[at] == 0) {
+                    at++;
+                }
+                if (at == counts.length) {
+                    return false;
+                }
+                vote = at;
+                hits = counts[at++];
+                return true;
+            }
+            if (at == size) {
+                return false;
+            }
+            vote = votes[at];
+            int j = at + 1;
+            while (j < size && votes[j] == vote) {
+                j++;
+            }
+            hits = j - at;
+            at = j;
+            return true;
+        }
+
+        // the offset next() moved to
+        long vote() {
+            return vote;
+        }
+
+        // the number of votes for it
+        int hits() {
+            return hits;
+        }
+    }
+}
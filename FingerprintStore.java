@@ -0,0 +1,341 @@
+
+/*
+ * A directory of fingerprints that survives between runs, so files that
+ * were analysed before are neither decoded nor fingerprinted again.
+ *
+ * The store is off unless the arc5500.store system property names its
+ * directory (arc5500.store=none also turns it off). It holds at most
+ * arc5500.storemb megabytes (DEFAULT_CAPACITY_MB by default): once a new
+ * entry takes it past that, the entries used longest ago are deleted until
+ * it is back under three quarters of it. An entry counts as used when it
+ * is written or read, which touches its modification time.
+ *
+ * Entries are keyed by the SHA-256 of the file's canonical path, length
+ * and modification time together with the analysis parameters (see
+ * PARAMETERS), so finding an entry does not read the file at all; a file
+ * that changes, or a change to the analysis, simply gets a new entry and
+ * the old one ages out.
+ *
+ * Each entry is its own file, mapped into memory only when it is asked
+ * for, and ends with a CRC32 of its contents. The landmarks, which are
+ * nearly all of an entry, are then read in place from the mapping; the
+ * few words of the rise/fall levels are copied, since the Kernels work on
+ * arrays. An entry that is truncated or fails its CRC is deleted and
+ * reported as missing, so only that file is analysed and stored again.
+ * New entries are written to a temporary file and renamed into place, so
+ * a crash never leaves half an entry behind.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class FingerprintStore {
+
+    private static final int MAGIC = 0x41354650; // "A5FP"
+    private static final int VERSION = 3;
+
+    // everything besides the file content that the fingerprints depend on
+    static final String PARAMETERS = "arc5500 v" + VERSION + " envelope "
+            + EnvelopeFingerprinter.WINDOWS_PER_SECOND + " fine "
+            + EnvelopePyramid.FINE_WINDOWS_PER_SECOND + " landmarks "
+            + LandmarkFingerprinter.PEAKS_PER_FRAME + " "
+            + LandmarkFingerprinter.FAN_OUT + " "
+            + LandmarkFingerprinter.TARGET_FRAMES + " "
+            + LandmarkFingerprinter.TARGET_BAND + " "
+            + LandmarkFingerprinter.MAX_FREQUENCY;
+
+    // header: magic, version, sample count, sample rate, rms
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+    public static final long DEFAULT_CAPACITY_MB = 256;
+
+    private final File dir;
+    // bytes the directory may hold
+    private final long capacity;
+    // bytes the directory holds, as far as this process knows; -1 until
+    // it is first counted
+    private long usage = -1;
+
+    // a store in the given directory, or a disabled one if dir is null
+    public FingerprintStore(File dir, long capacity) {
+        this.dir = dir;
+        this.capacity = capacity;
+    }
+
+    /*
+     * Returns the store configured by the arc5500.store and arc5500.storemb
+     * system properties.
+     */
+    public static FingerprintStore open() {
+        String configured = System.getProperty("arc5500.store");
+        if (configured == null || configured.equals("none")) {
+            return new FingerprintStore(null, 0);
+        }
+        long megabytes = DEFAULT_CAPACITY_MB;
+        String size = System.getProperty("arc5500.storemb");
+        if (size != null) {
+            try {
+                megabytes = Long.parseLong(size.trim());
+            } catch (NumberFormatException e) {
+                megabytes = -1;
+            }
+            if (megabytes <= 0 || megabytes > Long.MAX_VALUE >> 20) {
+                System.err.println("ERROR: Invalid arc5500.storemb " + size);
+                megabytes = DEFAULT_CAPACITY_MB;
+            }
+        }
+        return new FingerprintStore(new File(configured), megabytes << 20);
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /*
+     * Returns the key of the given file: the hex SHA-256 of PARAMETERS and
+     * the file's canonical path, length and modification time.
+     */
+    public String key(File f) throws IOException {
+        MessageDigest sha = sha256();
+        sha.update((PARAMETERS + "\n" + f.getCanonicalPath() + "\n"
+                + f.length() + "\n" + f.lastModified()).getBytes("UTF-8"));
+        return hex(sha.digest());
+    }
+
+    /*
+     * Returns the track stored under the given key, for the file with the
+     * given canonical path and name, or null if there is none. A damaged
+     * entry is deleted and also reported as null.
+     */
+    public Track get(String key, String path, String name) {
+        if (dir == null) {
+            return null;
+        }
+        File entry = new File(dir, key + ".fp");
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            Track track = read(entry, path, name);
+            if (track != null) {
+                entry.setLastModified(System.currentTimeMillis());
+                return track;
+            }
+        } catch (IOException e) {
+            // unreadable, treated as damaged
+        }
+        entry.delete();
+        return null;
+    }
+
+    /*
+     * Stores the given track under the given key. Failures are ignored: the
+     * store is only a cache, and the track is simply analysed again next
+     * time.
+     */
+    public void put(String key, Track track) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            File tmp = newTempFile();
+            try {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(
+                        new CheckedOutputStream(new BufferedOutputStream(
+                                new FileOutputStream(tmp)), crc));
+                try {
+                    writeEntry(track, out);
+                    out.writeLong(crc.getValue());
+                } finally {
+                    out.close();
+                }
+                long size = tmp.length();
+                commit(tmp, new File(dir, key + ".fp"));
+                evict(size);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            // not stored
+        }
+    }
+
+    /*
+     * Accounts for an entry of the given size just written and, if the
+     * store is now over its capacity, deletes the entries used longest ago
+     * until it is under three quarters of it.
+     */
+    private synchronized void evict(long added) {
+        if (usage >= 0) {
+            usage += added;
+            if (usage <= capacity) {
+                return;
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        usage = 0;
+        for (int i = 0; i < files.length; i++) {
+            used[i] = files[i].lastModified();
+            order[i] = i;
+            usage += files[i].length();
+        }
+        if (usage <= capacity) {
+            return;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(used[a], used[b]);
+            }
+        });
+        long evicted = 0;
+        for (int i = 0; i < order.length && usage > capacity / 4 * 3; i++) {
+            File f = files[order[i]];
+            long size = f.length();
+            // a temporary file may still be being written by another run
+            if (!f.getName().endsWith(".tmp") && f.delete()) {
+                usage -= size;
+                evicted++;
+            }
+        }
+        Stats.count("cache.store.evictions", evicted);
+    }
+
+    /*
+     * Writes the entry of a track, all but its CRC, as it is streamed
+     * rather than built in memory: a long recording has megabytes of
+     * landmarks.
+     */
+    private static void writeEntry(Track track, DataOutputStream out)
+            throws IOException {
+        EnvelopePyramid pyramid = track.getPyramid();
+        LandmarkFingerprint landmarks = track.getLandmarks();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(track.getSampleCount());
+        out.writeInt(track.getSampleRate());
+        out.writeDouble(track.getRms());
+        writeFingerprint(pyramid.getEnvelope(), out);
+        writeFingerprint(pyramid.getFine(), out);
+        out.writeDouble(landmarks.getFrameSeconds());
+        out.writeInt(landmarks.frames());
+        out.writeInt(landmarks.size());
+        for (int i = 0; i < landmarks.size(); i++) {
+            out.writeLong(((long) landmarks.hash(i) << 32) | landmarks.frame(i));
+        }
+    }
+
+    private static void writeFingerprint(Fingerprint f, DataOutputStream out)
+            throws IOException {
+        out.writeInt(f.length());
+        for (int i = 0; i < f.wordCount(); i++) {
+            out.writeLong(f.word(i));
+        }
+    }
+
+    private static Track read(File entry, String path, String name)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(entry, "r");
+        MappedByteBuffer b;
+        try {
+            b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+        } finally {
+            raf.close();
+        }
+        int size = b.capacity();
+        if (size < HEADER_SIZE + 8) {
+            return null;
+        }
+        ByteBuffer body = b.duplicate();
+        body.limit(size - 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != b.getLong(size - 8)) {
+            return null;
+        }
+        if (b.getInt() != MAGIC || b.getInt() != VERSION) {
+            return null;
+        }
+        long sampleCount = b.getLong();
+        int sampleRate = b.getInt();
+        double rms = b.getDouble();
+        Fingerprint envelope = readFingerprint(b);
+        Fingerprint fine = readFingerprint(b);
+        if (envelope == null || fine == null
+                || b.remaining() < 8 + 4 + 4 + 8) {
+            return null;
+        }
+        double frameSeconds = b.getDouble();
+        int frames = b.getInt();
+        int count = b.getInt();
+        if (count < 0 || b.remaining() != 8L * count + 8) {
+            return null;
+        }
+        LongBuffer landmarks = b.asLongBuffer();
+        landmarks.limit(count);
+        return new Track(path, name, sampleCount, sampleRate, rms,
+                new EnvelopePyramid(sampleRate, envelope, fine),
+                new LandmarkFingerprint(frameSeconds, landmarks, frames));
+    }
+
+    // the next fingerprint in b, or null if b is too short to hold it
+    private static Fingerprint readFingerprint(ByteBuffer b) {
+        if (b.remaining() < 4) {
+            return null;
+        }
+        int length = b.getInt();
+        if (length < 0 || b.remaining() < 8L * ((length + 63) >>> 6)) {
+            return null;
+        }
+        long[] words = new long[(length + 63) >>> 6];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = b.getLong();
+        }
+        return new Fingerprint(words, length);
+    }
+
+    private File newTempFile() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        return File.createTempFile("entry", ".tmp", dir);
+    }
+
+    // renames a fully written temporary file into place
+    private static void commit(File tmp, File f) throws IOException {
+        Files.move(tmp.toPath(), f.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder();
+        for (byte b : bytes) {
+            s.append(String.format("%02x", b & 0xff));
+        }
+        return s.toString();
+    }
+}
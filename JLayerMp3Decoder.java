@@ -0,0 +1,207 @@
+
+/*
+ * Decodes MP3 files in-process with JLayer (javazoom.jl.decoder), so no
+ * external program is needed. It is registered as an Mp3Decoder service in
+ * META-INF/services, which puts it ahead of the Java Sound and lame
+ * decoders whenever the JLayer jar is on the classpath (it is a dependency
+ * of the Maven build and is copied to target/lib).
+ *
+ * The output is made to line up sample for sample with lame --decode, which
+ * the fingerprints and offsets have always been computed from: the frame
+ * carrying the Xing/Info tag is not decoded, the encoder delay and padding
+ * recorded in a LAME tag are cut off, and so is the delay of the synthesis
+ * filter bank (528 + 1 samples, as lame counts it). A file without a LAME
+ * tag is assumed to carry lame's default encoder delay, like lame does.
+ * Channels are averaged exactly as PcmNormalizer averages lame's WAV.
+ */
+import java.io.*;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+
+public class JLayerMp3Decoder implements Mp3Decoder {
+
+    // delay of the decoder's synthesis filter bank, in samples
+    public static final int DECODER_DELAY = 528 + 1;
+    // encoder delay assumed when the file has no LAME tag
+    public static final int DEFAULT_ENCODER_DELAY = 576;
+
+    // bytes read from the first frame when looking for its tag
+    private static final int TAG_BYTES = 192;
+
+    public void decode(File mp3, MonoPcmSink sink) throws IOException,
+            UnsupportedAudioFileException {
+        Tag tag = Tag.read(mp3);
+        InputStream in = new BufferedInputStream(new FileInputStream(mp3));
+        Bitstream bits = new Bitstream(in);
+        try {
+            decode(bits, tag, sink);
+        } catch (JavaLayerException e) {
+            throw new IOException("cannot decode " + mp3 + ": "
+                    + e.getMessage());
+        } finally {
+            try {
+                bits.close();
+            } catch (JavaLayerException e) {
+                // the stream is closed below anyway
+            }
+            in.close();
+        }
+    }
+
+    private void decode(Bitstream bits, Tag tag, MonoPcmSink sink)
+            throws IOException, UnsupportedAudioFileException,
+            JavaLayerException {
+        Header h = bits.readFrame();
+        if (h == null || h.layer() != 3) {
+            throw new UnsupportedAudioFileException("not an MPEG layer III"
+                    + " file");
+        }
+        if (tag.present) {
+            bits.closeFrame();
+            h = bits.readFrame();
+        }
+        Decoder decoder = new Decoder();
+        short[] mono = new short[PcmNormalizer.BLOCK_FRAMES];
+        int filled = 0;
+        long skip = tag.delay + DECODER_DELAY;
+        // samples to deliver after the skipped ones, -1 if unknown
+        long remaining = tag.samples;
+        boolean started = false;
+        while (h != null && remaining != 0) {
+            SampleBuffer out = (SampleBuffer) decoder.decodeFrame(h, bits);
+            if (!started) {
+                sink.start(decoder.getOutputFrequency());
+                started = true;
+            }
+            short[] pcm = out.getBuffer();
+            int channels = out.getChannelCount();
+            int frames = out.getBufferLength() / channels;
+            int p = 0;
+            if (skip > 0) {
+                int s = (int) Math.min(skip, frames);
+                skip -= s;
+                p = s;
+            }
+            for (; p < frames && remaining != 0; p++, remaining--) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += pcm[p * channels + c];
+                }
+                mono[filled++] = (short) (sum / channels);
+                if (filled == mono.length) {
+                    sink.write(mono, 0, filled);
+                    filled = 0;
+                }
+            }
+            bits.closeFrame();
+            h = bits.readFrame();
+        }
+        if (!started) {
+            throw new UnsupportedAudioFileException("no audio frames");
+        }
+        if (filled > 0) {
+            sink.write(mono, 0, filled);
+        }
+        sink.finish();
+    }
+
+    /*
+     * The Xing/Info tag in the first frame of a file, if there is one, and
+     * the gapless information of its LAME extension.
+     */
+    static class Tag {
+        boolean present;
+        int delay = DEFAULT_ENCODER_DELAY;
+        // samples of audio without delay and padding, or -1 if unknown
+        long samples = -1;
+
+        static Tag read(File mp3) throws IOException {
+            Tag tag = new Tag();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mp3)));
+            try {
+                byte[] frame = new byte[TAG_BYTES];
+                in.readFully(frame, 0, 10);
+                int have = 10;
+                if (frame[0] == 'I' && frame[1] == 'D' && frame[2] == '3') {
+                    // the ID3v2 size is stored in 4 bytes of 7 bits each
+                    int skip = ((frame[6] & 0x7f) << 21)
+                            | ((frame[7] & 0x7f) << 14)
+                            | ((frame[8] & 0x7f) << 7) | (frame[9] & 0x7f);
+                    if ((frame[5] & 0x10) != 0) {
+                        skip += 10; // footer
+                    }
+                    in.skipBytes(skip);
+                    have = 0;
+                }
+                in.readFully(frame, have, frame.length - have);
+                tag.parse(frame);
+            } catch (EOFException e) {
+                // too short to hold a tag; decode will decide if it is MP3
+            } finally {
+                in.close();
+            }
+            return tag;
+        }
+
+        private void parse(byte[] f) {
+            if ((f[0] & 0xff) != 0xff || (f[1] & 0xe0) != 0xe0
+                    || (f[1] & 0x06) != 0x02) {
+                return; // no layer III frame header
+            }
+            boolean mpeg1 = (f[1] & 0x18) == 0x18;
+            boolean mono = (f[3] & 0xc0) == 0xc0;
+            int side = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            int p = 4 + side + ((f[1] & 0x01) == 0 ? 2 : 0);
+            if (!(match(f, p, "Xing") || match(f, p, "Info"))) {
+                return;
+            }
+            present = true;
+            int flags = f[p + 7] & 0x0f;
+            long frames = -1;
+            p += 8;
+            if ((flags & 1) != 0) {
+                frames = be(f, p, 4);
+                p += 4;
+            }
+            p += ((flags & 2) != 0 ? 4 : 0) + ((flags & 4) != 0 ? 100 : 0)
+                    + ((flags & 8) != 0 ? 4 : 0);
+            // LAME extension: version string, ..., 12 + 12 bits of
+            // delay and padding 21 bytes in
+            if (p + 24 > f.length || !match(f, p, "LAME")) {
+                return;
+            }
+            int gapless = (int) be(f, p + 21, 3);
+            delay = gapless >>> 12;
+            int padding = gapless & 0xfff;
+            if (frames > 0) {
+                int samplesPerFrame = mpeg1 ? 1152 : 576;
+                samples = Math.max(0, frames * samplesPerFrame - delay
+                        - padding);
+            }
+        }
+
+        private static boolean match(byte[] f, int p, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (f[p + i] != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long be(byte[] f, int p, int n) {
+            long v = 0;
+            for (int i = 0; i < n; i++) {
+                v = (v << 8) | (f[p + i] & 0xff);
+            }
+            return v;
+        }
+    }
+}
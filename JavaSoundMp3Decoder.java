@@ -0,0 +1,45 @@
+
+/*
+ * Decodes MP3 files in-process through the Java Sound API. The JDK itself
+ * has no MPEG reader, so this decoder only works when an MP3 service
+ * provider (for example mp3spi with JLayer) is on the classpath; otherwise
+ * it reports every file as unsupported and Mp3Decoders moves on to the next
+ * decoder.
+ */
+import java.io.*;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class JavaSoundMp3Decoder implements Mp3Decoder {
+
+    public void decode(File mp3, MonoPcmSink sink) throws IOException,
+            UnsupportedAudioFileException {
+        AudioInputStream encoded = AudioSystem.getAudioInputStream(mp3);
+        try {
+            AudioFormat base = encoded.getFormat();
+            int channels = base.getChannels();
+            AudioFormat pcm = new AudioFormat(
+                    AudioFormat.Encoding.PCM_SIGNED, base.getSampleRate(), 16,
+                    channels, channels * 2, base.getSampleRate(), false);
+            AudioInputStream decoded;
+            try {
+                decoded = AudioSystem.getAudioInputStream(pcm, encoded);
+            } catch (IllegalArgumentException e) {
+                throw new UnsupportedAudioFileException(
+                        "no MPEG to PCM converter installed");
+            }
+            try {
+                WavHeader h = new WavHeader(WavHeader.FORMAT_PCM, channels,
+                        (int) base.getSampleRate(), 16);
+                PcmNormalizer.convert(decoded, h, -1, sink);
+            } finally {
+                decoded.close();
+            }
+        } finally {
+            encoded.close();
+        }
+    }
+}
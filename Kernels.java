@@ -0,0 +1,159 @@
+
+/*
+ * The data-parallel inner loops of the analysis and of the envelope search:
+ * the sum of squared sample magnitudes over a run of samples (the energy of
+ * the envelope windows and the whole-file RMS) and the Hamming distance
+ * between packed fingerprints (Fingerprint.distance).
+ *
+ * Two implementations give bit-identical results: Scalar, in plain Java,
+ * and VectorKernels, written with the jdk.incubator.vector API so that they
+ * run on the widest SIMD registers the CPU has. Both work on integers only
+ * (a magnitude is at most 128, so its square fits in 15 bits), so the order
+ * of the additions does not matter.
+ *
+ * The implementation is chosen once, when the class is loaded, by the
+ * arc5500.kernels system property: "scalar", "vector", or "auto" (the
+ * default), which uses VectorKernels if the JVM was started with
+ * --add-modules jdk.incubator.vector and they agree with Scalar on a test
+ * input, and Scalar otherwise.
+ */
+import java.util.Random;
+
+public abstract class Kernels {
+
+    public static final Kernels INSTANCE = select();
+
+    // short name of the implementation, for Stats
+    public abstract String getName();
+
+    // sum of magnitude(samples[i])^2 for i in from .. to - 1
+    public abstract long sumOfSquaredMagnitudes(short[] samples, int from,
+            int to);
+
+    /*
+     * Number of differing bits between the first n bits of small and the n
+     * bits of large starting at bit offset, where bits past the end of
+     * large read as 0. Stops counting once the distance exceeds limit and
+     * then returns some number greater than limit.
+     */
+    public abstract int distance(long[] small, int n, long[] large,
+            int offset, int limit);
+
+    private static Kernels select() {
+        String configured = System.getProperty("arc5500.kernels", "auto");
+        Kernels scalar = new Scalar();
+        if (configured.equals("scalar")) {
+            return scalar;
+        }
+        try {
+            if (ModuleLayer.boot().findModule("jdk.incubator.vector")
+                    .isPresent()) {
+                Kernels vector = (Kernels) Class.forName("VectorKernels")
+                        .getDeclaredConstructor().newInstance();
+                if (vector.isUseful() && agree(vector, scalar)) {
+                    return vector;
+                }
+            }
+        } catch (Throwable e) {
+            // not compiled, or the module is missing: use the scalar loops
+        }
+        if (configured.equals("vector")) {
+            System.err.println("ERROR: Vector kernels unavailable, run with"
+                    + " --add-modules jdk.incubator.vector");
+        }
+        return scalar;
+    }
+
+    // false if the implementation would be no faster than Scalar
+    boolean isUseful() {
+        return true;
+    }
+
+    // compares the two implementations on random data of awkward lengths
+    private static boolean agree(Kernels a, Kernels b) {
+        Random r = new Random(5500);
+        short[] samples = new short[1000];
+        long[] small = new long[9];
+        long[] large = new long[23];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) r.nextInt();
+        }
+        for (int i = 0; i < large.length; i++) {
+            large[i] = r.nextLong();
+        }
+        for (int i = 0; i < small.length; i++) {
+            small[i] = r.nextLong();
+        }
+        small[small.length - 1] &= (1L << 21) - 1;
+        large[large.length - 1] = 0;
+        for (int from = 0; from < 40; from += 7) {
+            if (a.sumOfSquaredMagnitudes(samples, from, samples.length - from)
+                    != b.sumOfSquaredMagnitudes(samples, from,
+                            samples.length - from)) {
+                return false;
+            }
+        }
+        int n = 64 * (small.length - 1) + 21;
+        for (int offset = 0; offset + n <= 64 * large.length; offset += 13) {
+            if (a.distance(small, n, large, offset, Integer.MAX_VALUE)
+                    != b.distance(small, n, large, offset,
+                            Integer.MAX_VALUE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Scalar extends Kernels {
+
+        public String getName() {
+            return "scalar";
+        }
+
+        public long sumOfSquaredMagnitudes(short[] samples, int from, int to) {
+            long sum = 0;
+            for (int i = from; i < to; i++) {
+                int m = EnvelopeFingerprinter.magnitude(samples[i]);
+                sum += m * m;
+            }
+            return sum;
+        }
+
+        public int distance(long[] small, int n, long[] large, int offset,
+                int limit) {
+            int full = n >>> 6;
+            int d = 0;
+            for (int k = 0; k < full; k++) {
+                d += Long.bitCount(small[k]
+                        ^ bitsAt(large, offset + (k << 6)));
+                if (d > limit) {
+                    return d;
+                }
+            }
+            int rest = n & 63;
+            if (rest != 0) {
+                long mask = (1L << rest) - 1;
+                d += Long.bitCount((small[full] ^ bitsAt(large, offset
+                        + (full << 6))) & mask);
+            }
+            return d;
+        }
+    }
+
+    /*
+     * The 64 bits of words starting at the given (not necessarily word
+     * aligned) position as one word; positions past the end read as 0.
+     */
+    static long bitsAt(long[] words, int from) {
+        int w = from >>> 6;
+        int shift = from & 63;
+        if (w >= words.length) {
+            return 0;
+        }
+        long bits = words[w] >>> shift;
+        if (shift != 0 && w + 1 < words.length) {
+            bits |= words[w + 1] << (64 - shift);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,105 @@
+
+/*
+ * Decodes MP3 files with the LAME utility. The decoded WAV is read from
+ * lame's standard output through a pipe and mixed down to mono in the JVM,
+ * so no intermediate file is written.
+ *
+ * The binary defaults to the course installation and can be changed with
+ * the arc5500.lame system property (or the LAME environment variable).
+ * Whatever lame prints on its standard error is copied to System.err as it
+ * was when decoding started, which in a daemon is the client's reply.
+ */
+import java.io.*;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class LameMp3Decoder implements Mp3Decoder {
+
+    public static final String DEFAULT_LAME = "/course/cs5500f13/bin/lame";
+
+    private final String lame;
+
+    public LameMp3Decoder() {
+        this(System.getProperty("arc5500.lame",
+                System.getenv("LAME") != null ? System.getenv("LAME")
+                        : DEFAULT_LAME));
+    }
+
+    public LameMp3Decoder(String lame) {
+        this.lame = lame;
+    }
+
+    public void decode(File mp3, MonoPcmSink sink) throws IOException,
+            UnsupportedAudioFileException {
+        ProcessBuilder pb = new ProcessBuilder(lame, "--quiet", "--decode",
+                "--mp3input", mp3.getAbsolutePath(), "-");
+        Process p;
+        try {
+            p = pb.start();
+        } catch (IOException e) {
+            throw new UnsupportedAudioFileException(lame + " is not available");
+        }
+        p.getOutputStream().close();
+        Thread diagnostics = copy(p.getErrorStream(), System.err);
+        InputStream in = new BufferedInputStream(p.getInputStream());
+        try {
+            WavHeader h = WavHeader.read(in);
+            // lame cannot seek back on a pipe, so the data size in the
+            // header is only an estimate; read until lame closes the pipe
+            PcmNormalizer.convert(in, h, -1, sink);
+        } finally {
+            in.close();
+            try {
+                waitFor(p);
+            } finally {
+                join(diagnostics);
+            }
+        }
+    }
+
+    // copies the lines of the stream to the given one, on a thread of its own
+    private static Thread copy(final InputStream from, final PrintStream to) {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader r = new BufferedReader(
+                            new InputStreamReader(from));
+                    String line;
+                    while ((line = r.readLine()) != null) {
+                        to.println(line);
+                    }
+                    r.close();
+                } catch (IOException e) {
+                    // lame is gone; nothing more to copy
+                }
+            }
+        }, "arc5500-lame-stderr");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // waits for the copy to finish, so nothing is printed after the reply
+    private static void join(Thread t) throws InterruptedIOException {
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("MP3 decoding interrupted");
+        }
+    }
+
+    private void waitFor(Process p) throws IOException {
+        int rc;
+        try {
+            rc = p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("MP3 decoding interrupted");
+        }
+        if (rc != 0) {
+            throw new IOException(lame + " exited with status " + rc);
+        }
+    }
+}
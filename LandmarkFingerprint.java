@@ -0,0 +1,259 @@
+
+/*
+ * A landmark fingerprint: the spectral peak pairs of a recording (see
+ * LandmarkFingerprinter), each stored as a 24 bit hash and the frame at
+ * which its first peak occurs.
+ *
+ * Once finished, the landmarks are kept sorted by hash, so all the frames
+ * at which a given hash occurs can be looked up with a binary search.
+ * Two recordings are aligned by looking up every landmark of one in the
+ * other and voting for the time offset between the two occurrences; the
+ * offset with the most votes wins.
+ *
+ * The landmarks are stored in pages of PAGE entries rather than in one
+ * array, and sorted in place, so a recording of many hours never needs one
+ * huge array, nor a second copy of its landmarks, to be fingerprinted.
+ */
+import java.nio.LongBuffer;
+import java.util.*;
+
+public class LandmarkFingerprint {
+
+    // minimum number of landmarks that must agree on an offset for a match
+    public static final int MIN_HITS = 20;
+    // ... and the minimum fraction of the query's landmarks that must agree;
+    // unrelated recordings built from the same notes reach about 0.08
+    public static final double MIN_HIT_FRACTION = 0.15;
+
+    public static class Match {
+        private final int offset;
+        private final int hits;
+        private final double frameSeconds;
+
+        Match(int offset, int hits, double frameSeconds) {
+            this.offset = offset;
+            this.hits = hits;
+            this.frameSeconds = frameSeconds;
+        }
+
+        public boolean isMatch() {
+            return hits > 0;
+        }
+
+        // number of landmarks agreeing on the offset
+        public int getHits() {
+            return hits;
+        }
+
+        // offset of the query inside the reference, in frames
+        public int getOffset() {
+            return offset;
+        }
+
+        // offset of the query inside the reference, in tenths of a second
+        public float getSeconds() {
+            return Math.round(offset * frameSeconds * 10) / 10f;
+        }
+    }
+
+    private static final Match NO_MATCH = new Match(0, 0, 0);
+
+    private static final int PAGE_BITS = 15;
+    private static final int PAGE = 1 << PAGE_BITS;
+    // below this size a range is sorted by insertion
+    private static final int INSERTION_SORT = 16;
+
+    // (hash << 32) | frame, landmark i at pages[i >>> PAGE_BITS][i % PAGE],
+    // sorted once finished; the first page grows up to PAGE entries
+    private long[][] pages = { new long[256] };
+    private int count;
+    private int frames;
+    private final double frameSeconds;
+    // the landmarks, if they are read in place rather than held in pages
+    private LongBuffer mapped;
+
+    public LandmarkFingerprint(double frameSeconds) {
+        this.frameSeconds = frameSeconds;
+    }
+
+    /*
+     * A finished fingerprint made of the remaining landmarks of sorted,
+     * read in place: a buffer mapped from a FingerprintStore entry is
+     * served from the mapping, not copied to the heap.
+     */
+    LandmarkFingerprint(double frameSeconds, LongBuffer sorted, int frames) {
+        this.frameSeconds = frameSeconds;
+        this.frames = frames;
+        count = sorted.remaining();
+        pages = new long[0][];
+        mapped = sorted.slice();
+    }
+
+    void add(int hash, int frame) {
+        int p = count >>> PAGE_BITS;
+        int i = count & (PAGE - 1);
+        if (p == pages.length) {
+            pages = Arrays.copyOf(pages, p * 2);
+        }
+        if (pages[p] == null) {
+            pages[p] = new long[PAGE];
+        } else if (i == pages[p].length) {
+            pages[p] = Arrays.copyOf(pages[p], Math.min(PAGE, i * 2));
+        }
+        pages[p][i] = ((long) hash << 32) | frame;
+        count++;
+    }
+
+    // called once all landmarks have been added
+    void finish(int frames) {
+        this.frames = frames;
+        pages = Arrays.copyOf(pages, (count + PAGE - 1) >>> PAGE_BITS);
+        if (pages.length > 0) {
+            int last = pages.length - 1;
+            pages[last] = Arrays.copyOf(pages[last], count - (last << PAGE_BITS));
+        }
+        if (pages.length == 1) {
+            Arrays.sort(pages[0]);
+        } else {
+            sort(0, count);
+        }
+    }
+
+    private long get(int i) {
+        if (mapped != null) {
+            return mapped.get(i);
+        }
+        return pages[i >>> PAGE_BITS][i & (PAGE - 1)];
+    }
+
+    private void set(int i, long v) {
+        pages[i >>> PAGE_BITS][i & (PAGE - 1)] = v;
+    }
+
+    /*
+     * Sorts the landmarks in [lo, hi) in place, across pages: a quicksort
+     * on the median of three, recursing into the smaller part only.
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo > INSERTION_SORT) {
+            long a = get(lo);
+            long b = get((lo + hi) >>> 1);
+            long c = get(hi - 1);
+            long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            int i = lo;
+            int j = hi - 1;
+            while (i <= j) {
+                while (get(i) < pivot) {
+                    i++;
+                }
+                while (get(j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long v = get(i);
+                    set(i++, get(j));
+                    set(j--, v);
+                }
+            }
+            if (j + 1 - lo < hi - i) {
+                sort(lo, j + 1);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j + 1;
+            }
+        }
+        for (int i = lo + 1; i < hi; i++) {
+            long v = get(i);
+            int j = i - 1;
+            while (j >= lo && get(j) > v) {
+                set(j + 1, get(j));
+                j--;
+            }
+            set(j + 1, v);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // number of STFT frames of the recording
+    public int frames() {
+        return frames;
+    }
+
+    // seconds between two STFT frames
+    public double getFrameSeconds() {
+        return frameSeconds;
+    }
+
+    public int hash(int i) {
+        return (int) (get(i) >>> 32);
+    }
+
+    public int frame(int i) {
+        return (int) get(i);
+    }
+
+    // landmarks that must agree on one offset for this query to match
+    public int minHits() {
+        return Math.max(MIN_HITS, (int) Math.ceil(MIN_HIT_FRACTION * count));
+    }
+
+    // approximate heap bytes held; mapped landmarks are not on the heap
+    public long memoryBytes() {
+        long bytes = 32 + 8L * pages.length;
+        for (long[] page : pages) {
+            bytes += page == null ? 0 : 16 + 8L * page.length;
+        }
+        return bytes;
+    }
+
+    // index of the first landmark with the given hash, or where it would be
+    public int find(int hash) {
+        long key = (long) hash << 32;
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * Looks up every landmark of the query in this (reference) fingerprint
+     * and returns the time offset most of them agree on, or a result that
+     * is not a match if too few agree. Both must use the same frame length.
+     */
+    public Match align(LandmarkFingerprint query) {
+        if (query.count == 0 || count == 0
+                || Math.abs(query.frameSeconds - frameSeconds) > 1e-9) {
+            return NO_MATCH;
+        }
+        // offsets range from -query.frames to frames
+        int[] votes = new int[frames + query.frames + 1];
+        int bestOffset = 0;
+        int bestHits = 0;
+        for (int q = 0; q < query.count; q++) {
+            int h = query.hash(q);
+            int tq = query.frame(q);
+            for (int r = find(h); r < count && hash(r) == h; r++) {
+                int v = ++votes[frame(r) - tq + query.frames];
+                if (v > bestHits) {
+                    bestHits = v;
+                    bestOffset = frame(r) - tq;
+                }
+            }
+        }
+        if (bestHits < query.minHits()) {
+            return NO_MATCH;
+        }
+        return new Match(bestOffset, bestHits, frameSeconds);
+    }
+}
@@ -0,0 +1,219 @@
+
+/*
+ * Computes a LandmarkFingerprint with a short-time Fourier transform, as the
+ * samples arrive.
+ *
+ * The recording is cut into Hann windowed frames of about 1/10th of a
+ * second (a power of 2 number of samples) that overlap by half. Each frame
+ * is transformed with FFTPlan.realForward, and the strongest local maxima
+ * of its power spectrum below MAX_FREQUENCY are kept as peaks. Every peak
+ * (the anchor) is then paired with the first FAN_OUT peaks of the
+ * following TARGET_FRAMES frames that lie within TARGET_BAND of its
+ * frequency, and each pair is stored as a hash of (anchor frequency, other
+ * frequency, frame distance) at the anchor's frame.
+ *
+ * Frequencies are expressed in units of 11025/1024 Hz, so recordings at
+ * 11025, 22050 and 44100 Hz produce comparable hashes.
+ *
+ * Given a ParallelFFT, the frames are windowed into batches of
+ * BATCH_FRAMES and each batch is transformed at once on its pool, then
+ * searched for peaks in order, so that a single long recording can use
+ * cores that no other file is using. The fingerprint is the same either
+ * way.
+ */
+import java.util.Arrays;
+
+public class LandmarkFingerprinter implements MonoPcmSink {
+
+    public static final int PEAKS_PER_FRAME = 5;
+    public static final int FAN_OUT = 3;
+    public static final int TARGET_FRAMES = 32;
+    public static final int TARGET_BAND = 64;
+    public static final double MAX_FREQUENCY = 5000;
+    public static final int BATCH_FRAMES = 128;
+
+    private static final double FREQUENCY_UNIT = 11025.0 / 1024;
+
+    private int sampleRate;
+    private int frame;
+    private int hop;
+    private double[] window;
+    private double[] buffer;
+    private int filled;
+    // the windowed frames waiting for their transform, and their spectra
+    private double[][] x;
+    private double[][] re;
+    private double[][] im;
+    private int batched;
+    private double[] power;
+    private FFTPlan plan;
+    private int maxBin;
+    private int frameIndex;
+
+    // peaks of the last TARGET_FRAMES + 1 frames, by frame % (TARGET_FRAMES + 1)
+    private int[][] peaks;
+    private int[] peakCount;
+
+    private LandmarkFingerprint fingerprint;
+
+    // transforms the batches, or null to transform each frame on arrival
+    private final ParallelFFT fft;
+
+    public LandmarkFingerprinter() {
+        this(null);
+    }
+
+    public LandmarkFingerprinter(ParallelFFT fft) {
+        this.fft = fft;
+    }
+
+    public void start(int sampleRate) {
+        this.sampleRate = sampleRate;
+        frame = Math.max(256, Integer.highestOneBit(Math.max(1,
+                sampleRate / 10)));
+        hop = frame / 2;
+        window = new double[frame];
+        for (int i = 0; i < frame; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / frame);
+        }
+        buffer = new double[frame];
+        int batch = fft != null ? BATCH_FRAMES : 1;
+        x = new double[batch][frame];
+        re = new double[batch][frame / 2 + 1];
+        im = new double[batch][frame / 2 + 1];
+        batched = 0;
+        power = new double[frame / 2 + 1];
+        plan = FFTPlan.forSize(frame);
+        maxBin = (int) Math.min(frame / 2 - 2, MAX_FREQUENCY * frame
+                / sampleRate);
+        filled = 0;
+        frameIndex = 0;
+        peaks = new int[TARGET_FRAMES + 1][PEAKS_PER_FRAME];
+        peakCount = new int[TARGET_FRAMES + 1];
+        fingerprint = new LandmarkFingerprint((double) hop / sampleRate);
+    }
+
+    public void write(short[] samples, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            buffer[filled++] = samples[i];
+            if (filled == frame) {
+                addFrame();
+                System.arraycopy(buffer, hop, buffer, 0, frame - hop);
+                filled = frame - hop;
+            }
+        }
+    }
+
+    public void finish() {
+        analyseBatch();
+        // pair the anchors whose target zone was cut short by the end
+        int first = Math.max(0, frameIndex - TARGET_FRAMES);
+        for (int t = first; t < frameIndex; t++) {
+            pairAnchors(t);
+        }
+        fingerprint.finish(frameIndex);
+    }
+
+    public LandmarkFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    private void addFrame() {
+        double[] xb = x[batched++];
+        for (int i = 0; i < frame; i++) {
+            xb[i] = buffer[i] * window[i];
+        }
+        if (batched == x.length) {
+            analyseBatch();
+        }
+    }
+
+    // transforms the frames batched so far and analyses them in order
+    private void analyseBatch() {
+        if (batched == 0) {
+            return;
+        }
+        if (fft != null && batched > 1) {
+            if (batched == x.length) {
+                fft.realForwardAll(x, re, im);
+            } else {
+                fft.realForwardAll(Arrays.copyOf(x, batched), Arrays.copyOf(
+                        re, batched), Arrays.copyOf(im, batched));
+            }
+        } else {
+            for (int f = 0; f < batched; f++) {
+                plan.realForward(x[f], re[f], im[f]);
+            }
+        }
+        for (int f = 0; f < batched; f++) {
+            analyseFrame(re[f], im[f]);
+        }
+        batched = 0;
+    }
+
+    private void analyseFrame(double[] re, double[] im) {
+        for (int k = 0; k <= maxBin + 2; k++) {
+            power[k] = re[k] * re[k] + im[k] * im[k];
+        }
+        int slot = frameIndex % (TARGET_FRAMES + 1);
+        int[] p = peaks[slot];
+        int n = 0;
+        for (int k = 2; k <= maxBin; k++) {
+            double v = power[k];
+            if (v <= power[k - 1] || v < power[k + 1] || v <= power[k - 2]
+                    || v < power[k + 2]) {
+                continue;
+            }
+            // keep the PEAKS_PER_FRAME strongest, sorted by power
+            int j = n < PEAKS_PER_FRAME ? n++ : PEAKS_PER_FRAME;
+            while (j > 0 && power[p[j - 1]] < v) {
+                if (j < PEAKS_PER_FRAME) {
+                    p[j] = p[j - 1];
+                }
+                j--;
+            }
+            if (j < PEAKS_PER_FRAME) {
+                p[j] = k;
+            }
+        }
+        // store frequencies instead of bins
+        for (int i = 0; i < n; i++) {
+            p[i] = (int) Math.round(p[i] * (double) sampleRate / frame
+                    / FREQUENCY_UNIT);
+        }
+        peakCount[slot] = n;
+        frameIndex++;
+        if (frameIndex > TARGET_FRAMES) {
+            pairAnchors(frameIndex - 1 - TARGET_FRAMES);
+        }
+    }
+
+    /*
+     * Emits the landmarks anchored at frame t, whose target zone is frames
+     * t+1 .. t+TARGET_FRAMES (as far as they exist).
+     */
+    private void pairAnchors(int t) {
+        int[] anchors = peaks[t % (TARGET_FRAMES + 1)];
+        int anchorCount = peakCount[t % (TARGET_FRAMES + 1)];
+        for (int a = 0; a < anchorCount; a++) {
+            int f1 = anchors[a];
+            int paired = 0;
+            for (int dt = 1; dt <= TARGET_FRAMES && t + dt < frameIndex
+                    && paired < FAN_OUT; dt++) {
+                int slot = (t + dt) % (TARGET_FRAMES + 1);
+                for (int b = 0; b < peakCount[slot] && paired < FAN_OUT; b++) {
+                    int f2 = peaks[slot][b];
+                    if (Math.abs(f2 - f1) <= TARGET_BAND) {
+                        fingerprint.add(hash(f1, f2, dt), t);
+                        paired++;
+                    }
+                }
+            }
+        }
+    }
+
+    // 9 bits of each frequency and 6 bits of frame distance
+    static int hash(int f1, int f2, int dt) {
+        return ((f1 & 0x1ff) << 15) | ((f2 & 0x1ff) << 6) | (dt & 0x3f);
+    }
+}
@@ -0,0 +1,146 @@
+
+/*
+ * A thread-safe cache that keeps its entries within a memory budget,
+ * evicting the least recently used ones first.
+ *
+ * Every value is weighed (in approximate bytes) when it is put, and the
+ * entries used longest ago are evicted until the total weight is within
+ * the budget again; the newest entry is always kept, even if it is larger
+ * than the whole budget on its own. Hits, misses and evictions are
+ * counted.
+ *
+ * The budget bounds what the cache keeps alive, not what its callers do:
+ * a value that is also referenced elsewhere stays in memory after it is
+ * evicted.
+ */
+import java.util.*;
+
+public class LruCache<K, V> {
+
+    // approximate number of bytes held by a value
+    public interface Weigher<V> {
+        long weigh(V value);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<K, Entry<V>>(
+            16, 0.75f, true);
+    private final Weigher<V> weigher;
+    private final long budget;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LruCache(long budget, Weigher<V> weigher) {
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /*
+     * Returns the budget in bytes given by the system property name (in
+     * megabytes), or the given fraction of the maximum heap size if the
+     * property is not set or is not a positive number of megabytes that
+     * fits in a long once converted to bytes.
+     */
+    public static long budget(String property, double heapFraction) {
+        String configured = System.getProperty(property);
+        if (configured != null) {
+            long megabytes = -1;
+            try {
+                megabytes = Long.parseLong(configured.trim());
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            if (megabytes > 0 && megabytes <= Long.MAX_VALUE >> 20) {
+                return megabytes << 20;
+            }
+            System.err.println("ERROR: Invalid " + property + " "
+                    + configured);
+        }
+        return (long) (Runtime.getRuntime().maxMemory() * heapFraction);
+    }
+
+    // the cached value, or null
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.value;
+    }
+
+    // true if the key is cached; unlike get, not counted as a use
+    public synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        Entry<V> e = new Entry<V>(value, weigher.weigh(value));
+        Entry<V> old = map.put(key, e);
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += e.weight;
+        Iterator<Entry<V>> eldest = map.values().iterator();
+        while (weight > budget && map.size() > 1) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void remove(K key) {
+        Entry<V> old = map.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    // total weight of the cached values, in bytes
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String toString() {
+        return map.size() + " entries, " + (weight >> 10) + " of "
+                + (budget >> 10) + " KB, " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions";
+    }
+}
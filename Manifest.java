@@ -0,0 +1,82 @@
+/*
+ * The prepared inputs of a run, filled in by the preparation stage while
+ * the match stage reads it.
+ *
+ * Every distinct input file (by canonical path) is converted and
+ * fingerprinted exactly once, however many times it appears in the two
+ * pathspecs, and becomes one Track. For each of the two pathspecs the
+ * manifest lists the tracks of its files in directory order; a file that
+ * could not be read has no track. The match phase works from the manifest
+ * only and never touches the input files again.
+ *
+ * The distinct tracks are added one by one, in order; a file's track (or
+ * its absence) is known once isLoaded says so, so the match stage can
+ * start on the first files while later ones are still being analysed.
+ */
+import java.util.*;
+
+public class Manifest {
+
+    // the readable distinct tracks, in order of first appearance
+    private final List<Track> tracks = new ArrayList<Track>();
+    // for each distinct file added so far, its position in tracks, or -1
+    private final int[] compacted;
+    private int loaded;
+    // for each pathspec, the distinct file of each of its files
+    private final int[][] inputs;
+
+    /*
+     * inputs[s][i] is the number, from 0 to distinct - 1, of the distinct
+     * file that file i of pathspec s is.
+     */
+    public Manifest(int distinct, int[][] inputs) {
+        this.compacted = new int[distinct];
+        this.inputs = inputs;
+    }
+
+    // adds the track of the next distinct file, or null if it is unreadable
+    public void add(Track track) {
+        compacted[loaded] = -1;
+        if (track != null) {
+            tracks.add(track);
+            compacted[loaded] = tracks.size() - 1;
+        }
+        loaded++;
+    }
+
+    // number of distinct files
+    public int distinct() {
+        return compacted.length;
+    }
+
+    // number of distinct files added so far
+    public int loaded() {
+        return loaded;
+    }
+
+    // true once the track of the given file has been added
+    public boolean isLoaded(int pathspec, int file) {
+        return inputs[pathspec][file] < loaded;
+    }
+
+    // the readable distinct tracks; positions refer to this list
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    // number of files in the given pathspec
+    public int size(int pathspec) {
+        return inputs[pathspec].length;
+    }
+
+    // position in getTracks() of the given file, or -1 if it is unreadable
+    public int position(int pathspec, int file) {
+        return compacted[inputs[pathspec][file]];
+    }
+
+    // track of the given file, or null if it is unreadable
+    public Track track(int pathspec, int file) {
+        int p = position(pathspec, file);
+        return p < 0 ? null : tracks.get(p);
+    }
+}
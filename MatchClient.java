@@ -0,0 +1,143 @@
+
+/*
+ * Thin client of the daemon (see MatchServer): "java MatchClient ADDRESS
+ * ARGS..." sends the arguments of one arc5500 command line to the daemon
+ * listening on ADDRESS, a TCP port on the loopback interface or the path
+ * of a Unix domain socket, and behaves like that command line would have:
+ * MATCH lines go to standard output, everything else the daemon printed to
+ * standard error, and the process exits with the daemon's exit status.
+ *
+ * The paths after -f/--file and -d/--dir are made absolute first, since
+ * the daemon resolves relative paths against its own working directory.
+ * The daemon writes no files for its clients, so --stats-file FILE is sent
+ * as --stats-reply and the client writes the JSON that comes back to FILE.
+ * The arc5500 script runs this class when ARC5500_SERVER is set. It only
+ * needs itself to be compiled (javac MatchClient.java).
+ */
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class MatchClient {
+
+    // the options followed by a path, see Arc5500
+    private static final List<String> PATH_OPTIONS = Arrays.asList("-f",
+            "--file", "-d", "--dir");
+    // the last line of a reply, see MatchServer.EXIT
+    private static final String EXIT = "EXIT ";
+    // the lines of the --stats-reply JSON, see MatchServer.STATS
+    private static final String STATS = "JSON ";
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("ERROR: Usage: java MatchClient PORT|SOCKET"
+                    + " ARGUMENTS...");
+            System.exit(1);
+        }
+        try {
+            System.exit(request(args[0], Arrays.copyOfRange(args, 1,
+                    args.length)));
+        } catch (IOException e) {
+            System.err.println("ERROR: Cannot reach the daemon at " + args[0]);
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Sends one request and copies the reply; returns the exit status the
+     * daemon gave, or 1 if the reply ended without one.
+     */
+    static int request(String address, String[] args) throws IOException {
+        SocketChannel server = connect(address);
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    Channels.newOutputStream(server)), false, "UTF-8");
+            String statsFile = null;
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i > 0 && PATH_OPTIONS.contains(args[i - 1])) {
+                    arg = new File(arg).getAbsolutePath();
+                } else if (arg.equals("--stats-file") && i + 1 < args.length) {
+                    statsFile = args[++i];
+                    arg = "--stats-reply";
+                }
+                out.println(arg);
+            }
+            out.println();
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    Channels.newInputStream(server), "UTF-8"));
+            StringBuilder json = new StringBuilder();
+            // held back one line, so the EXIT line is not printed
+            String last = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(STATS)) {
+                    json.append(line, STATS.length(), line.length()).append(
+                            '\n');
+                    continue;
+                }
+                if (last != null) {
+                    print(last);
+                }
+                last = line;
+            }
+            if (statsFile != null) {
+                writeStats(statsFile, json);
+            }
+            if (last != null && last.startsWith(EXIT)) {
+                try {
+                    return Integer.parseInt(last.substring(EXIT.length()));
+                } catch (NumberFormatException e) {
+                    // not a status after all
+                }
+            }
+            if (last != null) {
+                print(last);
+            }
+            System.err.println("ERROR: The daemon did not finish the request");
+            return 1;
+        } finally {
+            server.close();
+        }
+    }
+
+    // writes the --stats-file JSON, as the command line would have
+    private static void writeStats(String file, CharSequence json) {
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(file),
+                    "UTF-8");
+            try {
+                w.append(json);
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Cannot write " + file);
+        }
+    }
+
+    private static SocketChannel connect(String address) throws IOException {
+        if (address.matches("[0-9]+")) {
+            return SocketChannel.open(new InetSocketAddress(InetAddress
+                    .getLoopbackAddress(), Integer.parseInt(address)));
+        }
+        SocketChannel server = SocketChannel.open(StandardProtocolFamily.UNIX);
+        server.connect(UnixDomainSocketAddress.of(Paths.get(address)));
+        return server;
+    }
+
+    private static void print(String line) {
+        if (line.startsWith("MATCH")) {
+            System.out.println(line);
+        } else {
+            System.err.println(line);
+        }
+    }
+}
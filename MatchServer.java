@@ -0,0 +1,181 @@
+
+/*
+ * Daemon mode: "arc5500 --serve ADDRESS" keeps one JVM running and answers
+ * match requests over a local socket. The JIT-compiled code and the tracks
+ * of every file seen so far stay in memory between requests, so a request
+ * against an unchanged reference set only analyses the new files.
+ *
+ * ADDRESS is either a TCP port, bound on the loopback interface only, or
+ * the path of a Unix domain socket, which only the daemon's user may
+ * connect to. A request is the arguments of one arc5500 command line
+ * (options and pathspecs), one per line, ended by an empty line or by the
+ * client closing its side, within REQUEST_SECONDS of connecting. The reply
+ * is what the command line would have printed, MATCH and ERROR lines alike,
+ * followed by a last line "EXIT n" with the exit status the command line
+ * would have had, after which the connection is closed. The daemon writes
+ * no files on a client's behalf: the JSON of --stats-file comes back in
+ * lines starting with STATS instead (see Arc5500.serveRequest). Relative paths are resolved
+ * against the directory the daemon was started in, so clients should send
+ * absolute ones; MatchClient does that and is what the arc5500 script runs
+ * when ARC5500_SERVER names a daemon.
+ *
+ * Requests are answered one at a time; each one uses all the worker
+ * threads (--threads) of the daemon, unless it gives its own.
+ */
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+public class MatchServer {
+
+    // starts the last line of a reply, followed by the exit status
+    public static final String EXIT = "EXIT ";
+    // starts each line of the --stats-reply JSON
+    public static final String STATS = "JSON ";
+    // time a client has to send its whole request
+    static final int REQUEST_SECONDS = 10;
+    // ... and the most bytes it may take
+    static final int REQUEST_BYTES = 1 << 20;
+
+    /*
+     * Listens on the given address and answers requests until the process
+     * is killed.
+     */
+    public static void serve(String address) throws IOException {
+        ServerSocketChannel server = open(address);
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                try {
+                    answer(client);
+                } catch (IOException e) {
+                    // the client went away or was too slow; serve the next
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    static ServerSocketChannel open(String address) throws IOException {
+        if (address.matches("[0-9]+")) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(address)));
+            return server;
+        }
+        Path path = Paths.get(address);
+        // a socket left behind by an earlier daemon; never remove files
+        if (Files.exists(path) && !Files.isRegularFile(path)
+                && !Files.isDirectory(path)) {
+            Files.delete(path);
+        }
+        ServerSocketChannel server = ServerSocketChannel
+                .open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(path));
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions
+                    .fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system; the directory must protect it
+        }
+        return server;
+    }
+
+    private static void answer(SocketChannel client) throws IOException {
+        List<String> args = readRequest(client, System.currentTimeMillis()
+                + REQUEST_SECONDS * 1000L);
+        PrintStream reply = new PrintStream(new BufferedOutputStream(
+                Channels.newOutputStream(client)), false, "UTF-8");
+        int status;
+        try {
+            status = Arc5500.serveRequest(args.toArray(new String[args
+                    .size()]), reply);
+        } catch (RuntimeException e) {
+            // a bug, or a decoder choking on a file: fail this request only
+            reply.println("ERROR: Request failed: " + e);
+            status = 1;
+        }
+        reply.println(EXIT + status);
+        reply.flush();
+        if (reply.checkError()) {
+            throw new IOException("cannot reply");
+        }
+    }
+
+    /*
+     * Reads the lines of a request up to the empty line or the end of the
+     * stream, and throws a SocketTimeoutException if that takes the client
+     * past the deadline (an IOException if it is over REQUEST_BYTES). Unix domain channels have no SO_TIMEOUT, so the
+     * channel is read without blocking, waiting on a Selector.
+     */
+    private static List<String> readRequest(SocketChannel client,
+            long deadline) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        Selector selector = Selector.open();
+        try {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ);
+            boolean ended = false;
+            while (!ended) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("request not sent in "
+                            + REQUEST_SECONDS + " s");
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                buffer.clear();
+                int n = client.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                request.write(buffer.array(), 0, n);
+                if (request.size() > REQUEST_BYTES) {
+                    throw new IOException("request too long");
+                }
+                ended = hasEmptyLine(request);
+            }
+        } finally {
+            selector.close();
+        }
+        client.configureBlocking(true);
+        List<String> args = new ArrayList<String>();
+        for (String line : request.toString("UTF-8").split("\n", -1)) {
+            if (line.length() == 0) {
+                break;
+            }
+            args.add(line);
+        }
+        return args;
+    }
+
+    // whether the request so far has an empty line: it starts with a
+    // newline or has two in a row
+    private static boolean hasEmptyLine(ByteArrayOutputStream request) {
+        byte[] b = request.toByteArray();
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] == '\n' && (i == 0 || b[i - 1] == '\n')) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,21 @@
+
+/*
+ * Receives mono 16 bit PCM audio as it is produced by a decoder or by the
+ * WAV normaliser. Samples arrive in blocks, so a consumer never needs the
+ * whole recording in memory.
+ *
+ * start is called once before the first block, finish once after the last.
+ */
+import java.io.IOException;
+
+public interface MonoPcmSink {
+
+    // called before any samples are delivered
+    void start(int sampleRate) throws IOException;
+
+    // samples[offset .. offset+length) are the next mono samples
+    void write(short[] samples, int offset, int length) throws IOException;
+
+    // called after the last block has been delivered
+    void finish() throws IOException;
+}
@@ -0,0 +1,25 @@
+
+/*
+ * Decodes an MP3 file into mono 16 bit PCM. Implementations push the
+ * decoded audio straight into a MonoPcmSink as it is produced, so nothing
+ * has to be written to disk in between.
+ *
+ * A decoder must be safe to use from several threads at once, each thread
+ * decoding its own file. Mp3Decoders picks the implementation to use.
+ */
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public interface Mp3Decoder {
+
+    /*
+     * Streams the audio of the given MP3 file into the sink, mixed down to
+     * mono. Throws UnsupportedAudioFileException if this decoder cannot
+     * handle the file (or is not available on this machine) before anything
+     * has been written to the sink.
+     */
+    void decode(File mp3, MonoPcmSink sink) throws IOException,
+            UnsupportedAudioFileException;
+}
@@ -0,0 +1,94 @@
+
+/*
+ * Chooses the MP3 decoder used by the analyser.
+ *
+ * Decoders are tried in this order and the first one that accepts a file
+ * is used for it:
+ *   1. the class named by the arc5500.mp3decoder system property,
+ *   2. decoders registered as services (META-INF/services/Mp3Decoder),
+ *      which in the Maven build is JLayerMp3Decoder; a service whose
+ *      classes cannot be loaded is skipped,
+ *   3. the Java Sound API, if an MP3 service provider is installed,
+ *   4. the LAME utility (see LameMp3Decoder).
+ * Only the last one needs an external program, so on a machine with an
+ * in-process decoder installed lame is never started.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class Mp3Decoders {
+
+    private static Mp3Decoder instance;
+
+    /*
+     * Returns the shared decoder. It is created on first use and is safe to
+     * call from several threads.
+     */
+    public static synchronized Mp3Decoder get() {
+        if (instance == null) {
+            instance = new Chain(discover());
+        }
+        return instance;
+    }
+
+    // replaces the shared decoder, e.g. with a fake one for testing
+    public static synchronized void set(Mp3Decoder decoder) {
+        instance = decoder;
+    }
+
+    private static List<Mp3Decoder> discover() {
+        List<Mp3Decoder> decoders = new ArrayList<Mp3Decoder>();
+        String configured = System.getProperty("arc5500.mp3decoder");
+        if (configured != null) {
+            try {
+                decoders.add((Mp3Decoder) Class.forName(configured)
+                        .getDeclaredConstructor().newInstance());
+            } catch (Exception e) {
+                System.err.println("ERROR: Cannot load MP3 decoder "
+                        + configured);
+            }
+        }
+        Iterator<Mp3Decoder> services = ServiceLoader.load(Mp3Decoder.class)
+                .iterator();
+        while (true) {
+            try {
+                if (!services.hasNext()) {
+                    break;
+                }
+                decoders.add(services.next());
+            } catch (ServiceConfigurationError e) {
+                // e.g. JLayerMp3Decoder without the JLayer jar: skip it
+            } catch (LinkageError e) {
+                // likewise
+            }
+        }
+        decoders.add(new JavaSoundMp3Decoder());
+        decoders.add(new LameMp3Decoder());
+        return decoders;
+    }
+
+    private static class Chain implements Mp3Decoder {
+        private final List<Mp3Decoder> decoders;
+
+        Chain(List<Mp3Decoder> decoders) {
+            this.decoders = decoders;
+        }
+
+        public void decode(File mp3, MonoPcmSink sink) throws IOException,
+                UnsupportedAudioFileException {
+            for (Mp3Decoder d : decoders) {
+                try {
+                    d.decode(mp3, sink);
+                    return;
+                } catch (UnsupportedAudioFileException e) {
+                    // not for this decoder, try the next one
+                }
+            }
+            throw new UnsupportedAudioFileException("no MP3 decoder for "
+                    + mp3);
+        }
+    }
+}
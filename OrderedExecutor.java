@@ -0,0 +1,79 @@
+
+/*
+ * Runs tasks on a thread pool but hands their results back in the order
+ * the tasks were submitted, so whatever the results are used for (such as
+ * printing MATCH lines) happens in the same order as in a sequential run.
+ *
+ * At most `window` tasks are in flight at once; the caller takes the
+ * oldest result whenever isFull() says so. Without a pool every task runs
+ * on the caller's thread when it is submitted.
+ */
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class OrderedExecutor<T> {
+
+    private final ExecutorService pool;
+    private final int window;
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<Future<T>>();
+
+    public OrderedExecutor(ExecutorService pool, int window) {
+        this.pool = pool;
+        this.window = Math.max(1, window);
+    }
+
+    public void submit(Callable<T> task) {
+        if (pool == null) {
+            FutureTask<T> f = new FutureTask<T>(task);
+            f.run();
+            pending.add(f);
+        } else {
+            pending.add(pool.submit(task));
+        }
+    }
+
+    // true if the oldest result should be taken before submitting more
+    public boolean isFull() {
+        return pending.size() >= window;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /*
+     * Waits for the oldest task and returns its result. An exception thrown
+     * by the task is rethrown, wrapped in a RuntimeException if it is
+     * checked.
+     */
+    public T take() {
+        Future<T> f = pending.remove();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+
+/*************************************************************************
+ *  Dependencies: FFTPlan.java
+ *
+ *  Runs FFTs on a ForkJoinPool.
+ *
+ *  transformAll() / realForwardAll() transform a batch of independent
+ *  frames (for example the frames of a spectrogram), splitting the batch
+ *  into tasks of roughly TASK_POINTS points each.
+ *
+ *  transform() parallelises a single large transform: the first stages,
+ *  which work on blocks of at most TASK_POINTS points, run block by block
+ *  in parallel, and every later stage splits its butterflies between
+ *  tasks, with the stages themselves run one after the other.
+ *
+ *  Nothing here keeps mutable state (FFTPlans are immutable), so one
+ *  ParallelFFT can be used by any number of threads.
+ *
+ *  Tracks are analysed in parallel with each other, one per thread. When
+ *  there are fewer files than threads, the LandmarkFingerprinter of each
+ *  hands its STFT frames to realForwardAll in batches, so that the cores
+ *  no other file uses transform them (see Arc5500.Preparation).
+ *
+ *************************************************************************/
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelFFT {
+
+    // points handled by one task; smaller transforms run sequentially
+    static final int TASK_POINTS = 1 << 14;
+
+    private final ForkJoinPool pool;
+
+    public ParallelFFT() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelFFT(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // shuts the pool down once its tasks are done
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /*
+     * Forward FFT of every frame re[f] + i im[f], in place. Frames may have
+     * different (power of 2) sizes.
+     */
+    public void transformAll(double[][] re, double[][] im) {
+        pool.invoke(new Batch(null, re, im, 0, re.length));
+    }
+
+    /*
+     * Forward FFT of every real frame x[f]; bins 0..N/2 of frame f go to
+     * re[f] and im[f] (see FFTPlan.realForward).
+     */
+    public void realForwardAll(double[][] x, double[][] re, double[][] im) {
+        pool.invoke(new Batch(x, re, im, 0, re.length));
+    }
+
+    /*
+     * Forward FFT of one (large) transform re[] + i im[], in place.
+     */
+    public void transform(double[] re, double[] im) {
+        FFTPlan plan = FFTPlan.forSize(re.length);
+        int n = plan.size();
+        if (n <= TASK_POINTS) {
+            plan.transform(re, im);
+            return;
+        }
+        pool.invoke(new BitReverse(plan, re, im, 0, plan.swapCount()));
+        // stages up to TASK_POINTS stay inside one block each
+        pool.invoke(new Blocks(plan, re, im, 0, n));
+        for (int size = TASK_POINTS * 2; size <= n; size <<= 1) {
+            pool.invoke(new Stage(plan, re, im, size, 0, n / 2));
+        }
+    }
+
+    // a range of frames of a batch
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] x;
+        private final double[][] re;
+        private final double[][] im;
+        private final int from;
+        private final int to;
+
+        Batch(double[][] x, double[][] re, double[][] im, int from, int to) {
+            this.x = x;
+            this.re = re;
+            this.im = im;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            long points = 0;
+            for (int f = from; f < to; f++) {
+                points += x != null ? x[f].length : re[f].length;
+            }
+            if (to - from > 1 && points > TASK_POINTS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Batch(x, re, im, from, mid), new Batch(x, re,
+                        im, mid, to));
+                return;
+            }
+            for (int f = from; f < to; f++) {
+                if (x != null) {
+                    FFTPlan.forSize(x[f].length).realForward(x[f], re[f],
+                            im[f]);
+                } else {
+                    FFTPlan.forSize(re[f].length).transform(re[f], im[f]);
+                }
+            }
+        }
+    }
+
+    // swaps [from, to) of the bit reversal permutation
+    private static class BitReverse extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FFTPlan plan;
+        private final double[] re;
+        private final double[] im;
+        private final int from;
+        private final int to;
+
+        BitReverse(FFTPlan plan, double[] re, double[] im, int from, int to) {
+            this.plan = plan;
+            this.re = re;
+            this.im = im;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > TASK_POINTS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BitReverse(plan, re, im, from, mid),
+                        new BitReverse(plan, re, im, mid, to));
+                return;
+            }
+            plan.bitReverse(re, im, from, to);
+        }
+    }
+
+    // all stages up to TASK_POINTS for the blocks in [from, to)
+    private static class Blocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FFTPlan plan;
+        private final double[] re;
+        private final double[] im;
+        private final int from;
+        private final int to;
+
+        Blocks(FFTPlan plan, double[] re, double[] im, int from, int to) {
+            this.plan = plan;
+            this.re = re;
+            this.im = im;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > TASK_POINTS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Blocks(plan, re, im, from, mid), new Blocks(
+                        plan, re, im, mid, to));
+                return;
+            }
+            for (int size = 2; size <= TASK_POINTS; size <<= 1) {
+                plan.butterflies(re, im, size, from, to);
+            }
+        }
+    }
+
+    /*
+     * Butterflies [from, to) of one stage, numbered across all blocks of
+     * the stage (there are n/2 butterflies per stage).
+     */
+    private static class Stage extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FFTPlan plan;
+        private final double[] re;
+        private final double[] im;
+        private final int size;
+        private final int from;
+        private final int to;
+
+        Stage(FFTPlan plan, double[] re, double[] im, int size, int from,
+                int to) {
+            this.plan = plan;
+            this.re = re;
+            this.im = im;
+            this.size = size;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > TASK_POINTS / 2) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Stage(plan, re, im, size, from, mid), new Stage(
+                        plan, re, im, size, mid, to));
+                return;
+            }
+            int h = size >>> 1;
+            int b = from;
+            while (b < to) {
+                int block = b / h;
+                int k = b % h;
+                int end = Math.min(to, (block + 1) * h);
+                plan.butterflies(re, im, size, block * size, k, k + end - b);
+                b = end;
+            }
+        }
+    }
+}
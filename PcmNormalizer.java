@@ -0,0 +1,147 @@
+
+/*
+ * Converts a WAV file of any supported layout (see WavHeader) into the
+ * canonical format used for all comparisons: mono, 16 bit signed PCM at
+ * the original sample rate.
+ *
+ * Channels are mixed down by averaging them, 8 bit samples are re-centred
+ * and widened, 24 and 32 bit samples keep their 16 most significant bits
+ * and float samples are scaled to the 16 bit range and clipped. The input
+ * is processed in fixed size blocks and pushed into a MonoPcmSink, so the
+ * memory used does not depend on the length of the file.
+ */
+import java.io.*;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class PcmNormalizer {
+
+    // number of frames converted per block
+    public static final int BLOCK_FRAMES = 16384;
+
+    /*
+     * Given a WAV file, streams its samples as mono 16 bit PCM into the
+     * sink.
+     */
+    public static void normalize(File f, MonoPcmSink sink) throws IOException,
+            UnsupportedAudioFileException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            normalize(in, sink);
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Given a stream positioned at the start of a WAV file, streams its
+     * samples as mono 16 bit PCM into the sink. The stream is not closed.
+     */
+    public static void normalize(InputStream in, MonoPcmSink sink)
+            throws IOException, UnsupportedAudioFileException {
+        WavHeader h = WavHeader.read(in);
+        convert(in, h, h.getDataLength(), sink);
+    }
+
+    /*
+     * Given a stream positioned at the first sample of audio in the layout
+     * described by the header, streams length bytes of it (or everything up
+     * to the end of the stream if length is -1) as mono 16 bit PCM into the
+     * sink.
+     */
+    public static void convert(InputStream in, WavHeader h, long length,
+            MonoPcmSink sink) throws IOException {
+        int frameSize = h.getBlockAlign();
+        byte[] raw = new byte[BLOCK_FRAMES * frameSize];
+        short[] mono = new short[BLOCK_FRAMES];
+        long remaining = length;
+        int pending = 0;
+        sink.start(h.getSampleRate());
+        while (remaining != 0) {
+            int want = raw.length - pending;
+            if (remaining > 0 && remaining < want) {
+                want = (int) remaining;
+            }
+            int r = in.read(raw, pending, want);
+            if (r < 0) {
+                break;
+            }
+            if (remaining > 0) {
+                remaining -= r;
+            }
+            pending += r;
+            int frames = pending / frameSize;
+            if (frames == 0) {
+                continue;
+            }
+            downmix(h, raw, frames, mono);
+            sink.write(mono, 0, frames);
+            // keep a partial frame for the next block
+            int used = frames * frameSize;
+            System.arraycopy(raw, used, raw, 0, pending - used);
+            pending -= used;
+        }
+        sink.finish();
+    }
+
+    /*
+     * Converts the first frames of raw (interleaved samples in the layout
+     * described by the header) to mono 16 bit samples.
+     */
+    static void downmix(WavHeader h, byte[] raw, int frames, short[] mono) {
+        int channels = h.getChannels();
+        int bytes = h.getBitsPerSample() / 8;
+        int p = 0;
+        if (h.isFloat()) {
+            for (int i = 0; i < frames; i++) {
+                double sum = 0;
+                for (int c = 0; c < channels; c++, p += bytes) {
+                    sum += floatSample(raw, p, bytes);
+                }
+                mono[i] = clip(Math.round(sum / channels * 32767.0));
+            }
+            return;
+        }
+        for (int i = 0; i < frames; i++) {
+            long sum = 0;
+            for (int c = 0; c < channels; c++, p += bytes) {
+                sum += intSample(raw, p, bytes);
+            }
+            mono[i] = (short) (sum / channels);
+        }
+    }
+
+    // a little endian integer sample reduced to 16 bits
+    private static int intSample(byte[] b, int p, int bytes) {
+        switch (bytes) {
+        case 1:
+            // 8 bit WAV samples are unsigned
+            return ((b[p] & 0xff) - 128) << 8;
+        case 2:
+            return (b[p] & 0xff) | (b[p + 1] << 8);
+        case 3:
+            return (b[p + 1] & 0xff) | (b[p + 2] << 8);
+        default:
+            return (b[p + 2] & 0xff) | (b[p + 3] << 8);
+        }
+    }
+
+    private static double floatSample(byte[] b, int p, int bytes) {
+        if (bytes == 4) {
+            return Float.intBitsToFloat(WavHeader.le32(b, p));
+        }
+        long lo = WavHeader.le32(b, p) & 0xffffffffL;
+        long hi = WavHeader.le32(b, p + 4);
+        return Double.longBitsToDouble((hi << 32) | lo);
+    }
+
+    private static short clip(long v) {
+        if (v > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (v < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) v;
+    }
+}
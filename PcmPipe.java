@@ -0,0 +1,120 @@
+
+/*
+ * Hands mono PCM over from a decoder on one thread to a sink on another
+ * through a bounded queue, so that a file is decoded (reading the disk or
+ * waiting on LAME) while the blocks already decoded are being analysed.
+ *
+ * The decoder writes into the pipe as into any MonoPcmSink, and blocks
+ * while `capacity` blocks are waiting: memory is bounded by the capacity,
+ * not by the length of the recording. The reading thread calls drainTo,
+ * which replays start, the blocks and finish on its own sink. The blocks
+ * are copied into buffers that the reader hands back once analysed, so a
+ * steady stream allocates nothing.
+ *
+ * If the decoder fails it calls fail() and drainTo returns false; if the
+ * reader gives up (its sink throws) the decoder's next write throws an
+ * IOException instead of blocking forever.
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PcmPipe implements MonoPcmSink {
+
+    private static final Block START = new Block(0);
+    private static final Block END = new Block(0);
+    private static final Block FAILED = new Block(0);
+
+    private final BlockingQueue<Block> blocks;
+    private final BlockingQueue<Block> free;
+    private volatile boolean closed;
+    // written before START is queued, so the reader sees it after taking it
+    private int sampleRate;
+
+    public PcmPipe(int capacity) {
+        blocks = new ArrayBlockingQueue<Block>(capacity + 2);
+        free = new ArrayBlockingQueue<Block>(capacity + 2);
+    }
+
+    public void start(int sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+        put(START);
+    }
+
+    public void write(short[] samples, int offset, int length)
+            throws IOException {
+        Block b = free.poll();
+        if (b == null || b.samples.length < length) {
+            b = new Block(length);
+        }
+        System.arraycopy(samples, offset, b.samples, 0, length);
+        b.length = length;
+        put(b);
+    }
+
+    public void finish() throws IOException {
+        put(END);
+    }
+
+    // called by the decoder when it can not decode the rest of the file
+    public void fail() {
+        try {
+            put(FAILED);
+        } catch (IOException e) {
+            // the reader has given up already
+        }
+    }
+
+    private void put(Block b) throws IOException {
+        try {
+            while (closed || !blocks.offer(b, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new IOException("PCM pipe closed by its reader");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /*
+     * Delivers everything the decoder writes to sink, on the calling thread,
+     * until the decoder finishes (true) or fails (false).
+     */
+    public boolean drainTo(MonoPcmSink sink) throws IOException {
+        try {
+            while (true) {
+                Block b = blocks.take();
+                if (b == START) {
+                    sink.start(sampleRate);
+                } else if (b == END) {
+                    sink.finish();
+                    return true;
+                } else if (b == FAILED) {
+                    return false;
+                } else {
+                    sink.write(b.samples, 0, b.length);
+                    free.offer(b);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            closed = true;
+            blocks.clear();
+        }
+    }
+
+    private static class Block {
+        final short[] samples;
+        int length;
+
+        Block(int size) {
+            samples = new short[size];
+        }
+    }
+}
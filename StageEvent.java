@@ -0,0 +1,37 @@
+
+/*
+ * The JFR event committed for every Stats span while a recording has it
+ * enabled, e.g. with
+ *
+ *     java -XX:StartFlightRecording:filename=run.jfr,settings=profile ...
+ *
+ * (the event is enabled by default, with no duration threshold). It shows
+ * each stage of each file on the thread that ran it, alongside the JVM's
+ * own events.
+ */
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("arc5500.Stage")
+@Label("Stage")
+@Category("Arc5500")
+@Description("One stage of the analysis or the matching of a file")
+public class StageEvent extends Event {
+
+    static final EventType TYPE = EventType.getEventType(StageEvent.class);
+
+    @Label("Stage")
+    String stage;
+
+    @Label("File")
+    String file;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
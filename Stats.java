@@ -0,0 +1,452 @@
+
+/*
+ * Instrumentation of the stages of a run: how often each stage ran, how
+ * long it took (in total, as a latency histogram and per input file) and
+ * how many bytes it allocated, plus named counters such as cache hits.
+ *
+ * A stage is measured with a Span:
+ *
+ *     Stats.Span span = Stats.begin(Stats.Stage.CONVERT, path);
+ *     try { ... } finally { span.end(); }
+ *
+ * or, for work that is interleaved with other work (such as the two halves
+ * of TrackAnalyser), with a Meter that is started and stopped around each
+ * piece and recorded once at the end.
+ *
+ * Nothing is collected unless collection was enabled (--stats) or a JFR
+ * recording has the arc5500.Stage event (StageEvent) turned on, in which
+ * case every span is also committed as a JFR event. Allocation is the
+ * thread's allocated byte count from the JVM, so spans on different
+ * threads do not disturb each other; it is -1 on JVMs without it.
+ *
+ * Spans and counters may be recorded from several threads at once.
+ */
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Stats {
+
+    public enum Stage {
+        DETECT("detect", "format detection"),
+        STORE("store", "fingerprint store"),
+        CONVERT("convert", "decoding, with the analysis it feeds"),
+        HEADER("header", "WAV header parsing"),
+        MAGNITUDES("magnitudes", "magnitudes, RMS and envelope"),
+        LANDMARKS("landmarks", "landmark fingerprinting"),
+        INDEX("index", "fingerprint index"),
+        FILTER("filter", "cascade filter"),
+        SEARCH("search", "envelope search (checkMatch)"),
+        ALIGN("align", "landmark alignment");
+
+        private final String key;
+        private final String label;
+
+        Stage(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // latencies are counted in buckets of powers of two microseconds
+    private static final int BUCKETS = 32;
+    // files listed in the summary, slowest first
+    private static final int SLOWEST_FILES = 5;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private static volatile boolean enabled;
+
+    private static final StageStats[] stages = new StageStats[Stage.values().length];
+    private static final Map<String, long[]> files = new HashMap<String, long[]>();
+    private static final Map<String, AtomicLong> counters = new TreeMap<String, AtomicLong>();
+
+    static {
+        for (Stage s : Stage.values()) {
+            stages[s.ordinal()] = new StageStats();
+        }
+    }
+
+    private static class StageStats {
+        long count;
+        long nanos;
+        long maxNanos;
+        long allocated;
+        final long[] histogram = new long[BUCKETS];
+
+        synchronized void add(long nanos, long bytes) {
+            count++;
+            this.nanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            if (bytes > 0) {
+                allocated += bytes;
+            }
+            long micros = nanos / 1000;
+            int b = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            histogram[Math.min(BUCKETS - 1, b)]++;
+        }
+
+        // upper bound of the given percentile, from the histogram
+        synchronized long percentileNanos(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += histogram[b];
+                if (seen >= rank) {
+                    return Math.min(maxNanos, (1L << b) * 1000);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    /*
+     * A measurement of one stage, begun by Stats.begin. end() records it
+     * (and commits its JFR event); a span that measures nothing is shared.
+     */
+    public static class Span {
+        private final Stage stage;
+        private final String file;
+        private final long start;
+        private final long allocatedAtStart;
+        private final StageEvent event;
+
+        private Span(Stage stage, String file, StageEvent event) {
+            this.stage = stage;
+            this.file = file;
+            this.event = event;
+            this.allocatedAtStart = allocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        public void end() {
+            if (stage == null) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            long bytes = allocatedAtStart < 0 ? -1 : allocatedBytes()
+                    - allocatedAtStart;
+            if (enabled) {
+                record(stage, file, nanos, bytes);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.stage = stage.getKey();
+                    event.file = file;
+                    event.allocated = bytes;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private static final Span NONE = new Span(null, null, null);
+
+    /*
+     * Accumulates the time and allocation of many short pieces of work
+     * done on one thread, between start() and stop().
+     */
+    public static class Meter {
+        private long nanos;
+        private long allocated;
+        private long start;
+        private long allocatedAtStart;
+
+        public void start() {
+            if (enabled) {
+                allocatedAtStart = allocatedBytes();
+                start = System.nanoTime();
+            }
+        }
+
+        public void stop() {
+            if (enabled) {
+                nanos += System.nanoTime() - start;
+                if (allocatedAtStart >= 0) {
+                    allocated += allocatedBytes() - allocatedAtStart;
+                }
+            }
+        }
+
+        // records the accumulated work as one run of the stage
+        public void record(Stage stage, String file) {
+            if (enabled) {
+                Stats.record(stage, file, nanos, THREADS == null ? -1
+                        : allocated);
+            }
+        }
+    }
+
+    // turns collection on or off; does not clear what was collected
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // forgets everything collected so far
+    public static void reset() {
+        for (Stage s : Stage.values()) {
+            stages[s.ordinal()] = new StageStats();
+        }
+        synchronized (files) {
+            files.clear();
+        }
+        synchronized (counters) {
+            counters.clear();
+        }
+    }
+
+    /*
+     * Begins a span of the given stage for the given file (null if the
+     * stage is not about one file).
+     */
+    public static Span begin(Stage stage, String file) {
+        StageEvent event = null;
+        if (StageEvent.TYPE.isEnabled()) {
+            event = new StageEvent();
+            event.begin();
+        }
+        if (!enabled && event == null) {
+            return NONE;
+        }
+        return new Span(stage, file, event);
+    }
+
+    // adds delta to the named counter
+    public static void count(String name, long delta) {
+        if (!enabled) {
+            return;
+        }
+        AtomicLong c;
+        synchronized (counters) {
+            c = counters.get(name);
+            if (c == null) {
+                c = new AtomicLong();
+                counters.put(name, c);
+            }
+        }
+        c.addAndGet(delta);
+    }
+
+    // sets the named counter, for values taken from elsewhere
+    public static void set(String name, long value) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (counters) {
+            counters.put(name, new AtomicLong(value));
+        }
+    }
+
+    private static void record(Stage stage, String file, long nanos,
+            long bytes) {
+        stages[stage.ordinal()].add(nanos, bytes);
+        if (file != null) {
+            synchronized (files) {
+                long[] perStage = files.get(file);
+                if (perStage == null) {
+                    perStage = new long[Stage.values().length];
+                    files.put(file, perStage);
+                }
+                perStage[stage.ordinal()] += nanos;
+            }
+        }
+    }
+
+    private static long counter(String name) {
+        synchronized (counters) {
+            AtomicLong c = counters.get(name);
+            return c == null ? 0 : c.get();
+        }
+    }
+
+    /*
+     * Prints the summary: one line per stage that ran, the throughput, the
+     * cache hit rates, the counters and the slowest files.
+     */
+    public static void report(PrintStream s) {
+        for (Stage stage : Stage.values()) {
+            StageStats st = stages[stage.ordinal()];
+            synchronized (st) {
+                if (st.count == 0) {
+                    continue;
+                }
+                s.println("STATS: " + stage.getKey() + " " + st.count
+                        + " runs, " + millis(st.nanos) + " total, "
+                        + millis(st.nanos / st.count) + " mean, p50 "
+                        + millis(st.percentileNanos(0.5)) + ", p99 "
+                        + millis(st.percentileNanos(0.99)) + ", max "
+                        + millis(st.maxNanos) + ", "
+                        + (THREADS == null ? "?" : kilobytes(st.allocated))
+                        + " allocated (" + stage.getLabel() + ")");
+            }
+        }
+        long prepare = counter("prepare.nanos");
+        long match = counter("match.nanos");
+        if (prepare > 0) {
+            s.println("STATS: prepared " + counter("files") + " files in "
+                    + millis(prepare) + ", analysed "
+                    + counter("files.analysed") + " ("
+                    + kilobytes(counter("pcm.bytes")) + " of PCM, "
+                    + rate(counter("pcm.bytes") >> 20, prepare) + " MB/s)");
+        }
+        if (match > 0) {
+            s.println("STATS: compared " + counter("pairs") + " pairs in "
+                    + millis(match) + " (" + rate(counter("pairs"), match)
+                    + " pairs/s)");
+        }
+        s.println("STATS: kernels " + Kernels.INSTANCE.getName());
+        s.println("STATS: caches: tracks " + hitRate("cache.tracks")
+                + ", store " + hitRate("cache.store") + ", matches "
+                + hitRate("cache.matches"));
+        List<Map.Entry<String, long[]>> slowest;
+        synchronized (files) {
+            slowest = new ArrayList<Map.Entry<String, long[]>>(files
+                    .entrySet());
+        }
+        Collections.sort(slowest, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a,
+                    Map.Entry<String, long[]> b) {
+                return Long.compare(total(b.getValue()), total(a.getValue()));
+            }
+        });
+        for (int i = 0; i < Math.min(SLOWEST_FILES, slowest.size()); i++) {
+            s.println("STATS: file " + millis(total(slowest.get(i).getValue()))
+                    + " " + slowest.get(i).getKey());
+        }
+    }
+
+    /*
+     * Prints everything collected as one JSON object: the stages with their
+     * histograms (bucket b counts latencies below 2^b microseconds), the
+     * counters and the time per stage of every file, in nanoseconds.
+     */
+    public static void dump(PrintStream s) {
+        StringBuilder b = new StringBuilder("{\"kernels\":");
+        b.append(quote(Kernels.INSTANCE.getName())).append(",\"stages\":{");
+        for (Stage stage : Stage.values()) {
+            StageStats st = stages[stage.ordinal()];
+            synchronized (st) {
+                b.append(stage.ordinal() == 0 ? "" : ",");
+                b.append(quote(stage.getKey())).append(":{\"count\":")
+                        .append(st.count).append(",\"nanos\":")
+                        .append(st.nanos).append(",\"maxNanos\":")
+                        .append(st.maxNanos).append(",\"allocatedBytes\":")
+                        .append(THREADS == null ? -1 : st.allocated)
+                        .append(",\"histogram\":")
+                        .append(Arrays.toString(st.histogram).replace(" ", ""))
+                        .append("}");
+            }
+        }
+        b.append("},\"counters\":{");
+        synchronized (counters) {
+            String sep = "";
+            for (Map.Entry<String, AtomicLong> c : counters.entrySet()) {
+                b.append(sep).append(quote(c.getKey())).append(":")
+                        .append(c.getValue().get());
+                sep = ",";
+            }
+        }
+        b.append("},\"files\":{");
+        synchronized (files) {
+            String sep = "";
+            for (Map.Entry<String, long[]> f : files.entrySet()) {
+                b.append(sep).append(quote(f.getKey())).append(":{");
+                String inner = "";
+                for (Stage stage : Stage.values()) {
+                    long nanos = f.getValue()[stage.ordinal()];
+                    if (nanos > 0) {
+                        b.append(inner).append(quote(stage.getKey()))
+                                .append(":").append(nanos);
+                        inner = ",";
+                    }
+                }
+                b.append("}");
+                sep = ",";
+            }
+        }
+        b.append("}}");
+        s.println(b);
+    }
+
+    private static long total(long[] perStage) {
+        long t = 0;
+        for (long n : perStage) {
+            t += n;
+        }
+        return t;
+    }
+
+    private static String hitRate(String cache) {
+        long hits = counter(cache + ".hits");
+        long misses = counter(cache + ".misses");
+        if (hits + misses == 0) {
+            return "unused";
+        }
+        return hits + "/" + (hits + misses) + " hits ("
+                + (100 * hits / (hits + misses)) + "%)";
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+    }
+
+    private static String kilobytes(long bytes) {
+        return (bytes >> 10) + " KB";
+    }
+
+    private static String rate(long amount, long nanos) {
+        return String.format(Locale.ROOT, "%.1f", amount * 1e9 / nanos);
+    }
+
+    private static String quote(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    // bytes allocated so far by the current thread, or -1 if unknown
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread
+                .currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory
+                    .getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+                if (sun.isThreadAllocatedMemorySupported()
+                        && sun.isThreadAllocatedMemoryEnabled()) {
+                    return sun;
+                }
+            }
+        } catch (LinkageError e) {
+            // not a HotSpot JVM
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+
+/*
+ * Everything the matcher knows about one audio file: its canonical path
+ * (which identifies it in caches), its name, its length in samples, its
+ * sample rate, the RMS of all its magnitudes and its two fingerprints, the
+ * rise/fall envelope (with its finer level, see
+ * EnvelopePyramid) and the spectral peak landmarks.
+ * Once a Track is built the file itself is no longer needed.
+ *
+ * For CascadeFilter, the number of rising windows of the envelope is also
+ * counted once per second (RISE_BLOCK windows) when the track is built.
+ */
+public class Track {
+
+    public static final int RISE_BLOCK = EnvelopeFingerprinter.WINDOWS_PER_SECOND;
+
+    private final String path;
+    private final String name;
+    private final long sampleCount;
+    private final int sampleRate;
+    private final double rms;
+    private final EnvelopePyramid pyramid;
+    private final Fingerprint envelope;
+    private final LandmarkFingerprint landmarks;
+    // prefix sums of the rising windows, per RISE_BLOCK windows
+    private final int[] rises;
+
+    public Track(String path, String name, long sampleCount, int sampleRate,
+            double rms, EnvelopePyramid pyramid, LandmarkFingerprint landmarks) {
+        this.path = path;
+        this.name = name;
+        this.sampleCount = sampleCount;
+        this.sampleRate = sampleRate;
+        this.rms = rms;
+        this.pyramid = pyramid;
+        this.envelope = pyramid.getEnvelope();
+        this.landmarks = landmarks;
+        this.rises = envelope.prefixCounts(RISE_BLOCK);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    // RMS of the magnitudes of the whole file
+    public double getRms() {
+        return rms;
+    }
+
+    // the 100 ms level of the pyramid
+    public Fingerprint getEnvelope() {
+        return envelope;
+    }
+
+    public EnvelopePyramid getPyramid() {
+        return pyramid;
+    }
+
+    public LandmarkFingerprint getLandmarks() {
+        return landmarks;
+    }
+
+    // number of rising windows in the whole envelope
+    public int getRises() {
+        return rises[rises.length - 1];
+    }
+
+    /*
+     * Number of rising windows before window x, where x is a multiple of
+     * RISE_BLOCK or at least the length of the envelope.
+     */
+    public int getRisesBefore(int x) {
+        if (x >= envelope.length()) {
+            return getRises();
+        }
+        return rises[x / RISE_BLOCK];
+    }
+
+    // approximate number of bytes held by this track
+    public long memoryBytes() {
+        return 64 + 2L * (path.length() + name.length())
+                + pyramid.memoryBytes() + landmarks.memoryBytes() + 4L
+                * rises.length;
+    }
+}
@@ -0,0 +1,86 @@
+
+/*
+ * Analyses a recording in one pass, as the samples arrive: the rise/fall
+ * envelope (EnvelopeFingerprinter), the landmarks (LandmarkFingerprinter)
+ * and the RMS of all sample magnitudes are computed from the same blocks.
+ *
+ * Nothing is kept per sample: apart from one block, the only memory
+ * needed is that of the fingerprints themselves, a few kilobytes per
+ * second of audio against 22 KB of 16 bit samples at 11025 Hz.
+ *
+ * The time spent on the magnitudes (with the RMS and the envelope) and on
+ * the landmarks is metered separately for Stats.
+ */
+public class TrackAnalyser implements MonoPcmSink {
+
+    private final EnvelopeFingerprinter envelope = new EnvelopeFingerprinter();
+    private final LandmarkFingerprinter landmarks;
+    private final Stats.Meter magnitudeMeter = new Stats.Meter();
+    private final Stats.Meter landmarkMeter = new Stats.Meter();
+    private int sampleRate;
+    private long samples;
+
+    public TrackAnalyser() {
+        this(null);
+    }
+
+    // fft, if not null, transforms the STFT frames (see LandmarkFingerprinter)
+    public TrackAnalyser(ParallelFFT fft) {
+        landmarks = new LandmarkFingerprinter(fft);
+    }
+
+    public void start(int sampleRate) {
+        envelope.start(sampleRate);
+        landmarks.start(sampleRate);
+        this.sampleRate = sampleRate;
+        samples = 0;
+    }
+
+    public void write(short[] block, int offset, int length) {
+        magnitudeMeter.start();
+        envelope.write(block, offset, length);
+        samples += length;
+        magnitudeMeter.stop();
+        landmarkMeter.start();
+        landmarks.write(block, offset, length);
+        landmarkMeter.stop();
+    }
+
+    public void finish() {
+        envelope.finish();
+        landmarkMeter.start();
+        landmarks.finish();
+        landmarkMeter.stop();
+    }
+
+    // records the metered time of the analysis of the given file
+    public void recordStats(String file) {
+        magnitudeMeter.record(Stats.Stage.MAGNITUDES, file);
+        landmarkMeter.record(Stats.Stage.LANDMARKS, file);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    // number of (mono) samples analysed
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public EnvelopePyramid getEnvelope() {
+        return envelope.getPyramid();
+    }
+
+    public LandmarkFingerprint getLandmarks() {
+        return landmarks.getFingerprint();
+    }
+
+    /*
+     * The RMS of the magnitudes of all samples, used to compare recordings
+     * of equal length (see checkFileMatch).
+     */
+    public double getRms() {
+        return Math.sqrt((double) envelope.getSumOfSquares() / samples);
+    }
+}
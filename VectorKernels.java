@@ -0,0 +1,118 @@
+
+/*
+ * The Kernels written with the jdk.incubator.vector API, so that C2
+ * compiles them to the widest SIMD instructions of the CPU (AVX2 or
+ * AVX-512 on x86, NEON on ARM). Needs --add-modules jdk.incubator.vector
+ * at compile and run time; Kernels loads this class by name only when the
+ * module is there.
+ *
+ * sumOfSquaredMagnitudes shifts, takes the absolute value and squares
+ * whole vectors of 16 bit samples (a square is at most 128 * 128, which
+ * still fits a short), widens them to ints and adds them up lane by lane,
+ * folding the lanes into a long before they could overflow.
+ *
+ * distance builds a vector of 64 windows of large per lane from two
+ * overlapping loads shifted towards each other, XORs it with small and
+ * counts the bits with the classic SWAR popcount (the API has no lanewise
+ * bit count before Java 19). The limit is checked once per vector, so the
+ * count may run a few words further than in Scalar before it gives up;
+ * the result is still greater than the limit.
+ */
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorKernels extends Kernels {
+
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    // vectors whose squares can be added to the int lanes without overflow
+    private static final int FOLD = Integer.MAX_VALUE / (2 * 128 * 128);
+
+    private final Kernels scalar = new Kernels.Scalar();
+
+    public String getName() {
+        return "vector " + LONGS.vectorBitSize() + " bit";
+    }
+
+    // with fewer than 2 longs per vector there is nothing to gain
+    boolean isUseful() {
+        return LONGS.length() >= 2;
+    }
+
+    public long sumOfSquaredMagnitudes(short[] samples, int from, int to) {
+        long sum = 0;
+        int i = from;
+        int bound = from + SHORTS.loopBound(to - from);
+        while (i < bound) {
+            IntVector acc = IntVector.zero(INTS);
+            int end = Math.min(bound, i + FOLD * SHORTS.length());
+            for (; i < end; i += SHORTS.length()) {
+                ShortVector m = ShortVector.fromArray(SHORTS, samples, i)
+                        .lanewise(VectorOperators.ASHR, 8)
+                        .lanewise(VectorOperators.ABS);
+                ShortVector squares = m.mul(m);
+                acc = acc.add((IntVector) squares.convert(
+                        VectorOperators.S2I, 0)).add((IntVector) squares
+                        .convert(VectorOperators.S2I, 1));
+            }
+            sum += acc.reduceLanesToLong(VectorOperators.ADD);
+        }
+        return sum + scalar.sumOfSquaredMagnitudes(samples, i, to);
+    }
+
+    public int distance(long[] small, int n, long[] large, int offset,
+            int limit) {
+        int full = n >>> 6;
+        int w = offset >>> 6;
+        int shift = offset & 63;
+        int step = LONGS.length();
+        // the second load reads large[w + k + 1 ..], so stop one word early
+        int bound = Math.min(full, large.length - w - 1);
+        bound = bound <= 0 ? 0 : LONGS.loopBound(bound);
+        int d = 0;
+        int k = 0;
+        for (; k < bound; k += step) {
+            LongVector bits = LongVector.fromArray(LONGS, large, w + k);
+            if (shift != 0) {
+                bits = bits.lanewise(VectorOperators.LSHR, shift).or(
+                        LongVector.fromArray(LONGS, large, w + k + 1)
+                                .lanewise(VectorOperators.LSHL, 64 - shift));
+            }
+            d += bitCount(LongVector.fromArray(LONGS, small, k).lanewise(
+                    VectorOperators.XOR, bits));
+            if (d > limit) {
+                return d;
+            }
+        }
+        for (; k < full; k++) {
+            d += Long.bitCount(small[k] ^ bitsAt(large, offset + (k << 6)));
+            if (d > limit) {
+                return d;
+            }
+        }
+        int rest = n & 63;
+        if (rest != 0) {
+            long mask = (1L << rest) - 1;
+            d += Long.bitCount((small[full] ^ bitsAt(large, offset
+                    + (full << 6))) & mask);
+        }
+        return d;
+    }
+
+    // the number of set bits in all lanes of x
+    private static int bitCount(LongVector x) {
+        x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+        x = x.and(0x3333333333333333L).add(
+                x.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(0x0f0f0f0f0f0f0f0fL);
+        x = x.add(x.lanewise(VectorOperators.LSHR, 8));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 16));
+        x = x.add(x.lanewise(VectorOperators.LSHR, 32));
+        return (int) x.and(0x7f).reduceLanes(VectorOperators.ADD);
+    }
+}
@@ -0,0 +1,185 @@
+
+/*
+ * Parses the RIFF/WAVE header of a WAV file: walks the chunk list until the
+ * data chunk is reached and records the sample format from the fmt chunk.
+ *
+ * Supported encodings are integer PCM with 8, 16, 24 or 32 bits per sample
+ * and IEEE float with 32 or 64 bits per sample, with any number of
+ * channels, either as plain fmt chunks or as WAVE_FORMAT_EXTENSIBLE.
+ */
+import java.io.*;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+public class WavHeader {
+
+    public static final int FORMAT_PCM = 0x0001;
+    public static final int FORMAT_FLOAT = 0x0003;
+    public static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    private int formatTag;
+    private int channels;
+    private int sampleRate;
+    private int blockAlign;
+    private int bitsPerSample;
+    private long dataLength;
+
+    private WavHeader() {
+    }
+
+    /*
+     * Describes headerless audio, e.g. the PCM produced by a decoder, so it
+     * can be fed through PcmNormalizer.convert.
+     */
+    public WavHeader(int formatTag, int channels, int sampleRate,
+            int bitsPerSample) {
+        this.formatTag = formatTag;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+        this.blockAlign = channels * (bitsPerSample / 8);
+        this.dataLength = -1;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    // number of sample bytes, or -1 if the header does not say
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public boolean isFloat() {
+        return formatTag == FORMAT_FLOAT;
+    }
+
+    /*
+     * Reads the header from the start of the given stream. On return the
+     * stream is positioned at the first byte of the data chunk.
+     */
+    public static WavHeader read(InputStream in) throws IOException,
+            UnsupportedAudioFileException {
+        WavHeader h = new WavHeader();
+        byte[] b = new byte[12];
+        readFully(in, b, 12);
+        if (!tag(b, 0, "RIFF") || !tag(b, 8, "WAVE")) {
+            throw new UnsupportedAudioFileException("not a RIFF/WAVE file");
+        }
+        boolean haveFormat = false;
+        while (true) {
+            readFully(in, b, 8);
+            long size = le32(b, 4) & 0xffffffffL;
+            if (tag(b, 0, "fmt ")) {
+                if (size > 0xffff) {
+                    throw new UnsupportedAudioFileException("bad fmt chunk");
+                }
+                byte[] fmt = new byte[(int) size];
+                readFully(in, fmt, fmt.length);
+                h.parseFormat(fmt);
+                haveFormat = true;
+            } else if (tag(b, 0, "data")) {
+                if (!haveFormat) {
+                    throw new UnsupportedAudioFileException(
+                            "data chunk before fmt chunk");
+                }
+                // streamed writers leave the size at 0 or 0xffffffff
+                h.dataLength = (size == 0 || size == 0xffffffffL) ? -1 : size;
+                return h;
+            } else {
+                skipFully(in, size);
+            }
+            // chunks are word aligned
+            if ((size & 1) != 0) {
+                skipFully(in, 1);
+            }
+        }
+    }
+
+    private void parseFormat(byte[] fmt) throws UnsupportedAudioFileException {
+        if (fmt.length < 16) {
+            throw new UnsupportedAudioFileException("short fmt chunk");
+        }
+        formatTag = le16(fmt, 0) & 0xffff;
+        channels = le16(fmt, 2) & 0xffff;
+        sampleRate = le32(fmt, 4);
+        blockAlign = le16(fmt, 12) & 0xffff;
+        bitsPerSample = le16(fmt, 14) & 0xffff;
+        if (formatTag == FORMAT_EXTENSIBLE) {
+            if (fmt.length < 26) {
+                throw new UnsupportedAudioFileException(
+                        "short WAVE_FORMAT_EXTENSIBLE chunk");
+            }
+            // the first two bytes of the sub format GUID hold the real format
+            formatTag = le16(fmt, 24) & 0xffff;
+        }
+        boolean supported;
+        if (formatTag == FORMAT_PCM) {
+            supported = bitsPerSample == 8 || bitsPerSample == 16
+                    || bitsPerSample == 24 || bitsPerSample == 32;
+        } else if (formatTag == FORMAT_FLOAT) {
+            supported = bitsPerSample == 32 || bitsPerSample == 64;
+        } else {
+            supported = false;
+        }
+        if (!supported || channels < 1 || sampleRate <= 0
+                || blockAlign != channels * (bitsPerSample / 8)) {
+            throw new UnsupportedAudioFileException("unsupported encoding "
+                    + formatTag + " with " + bitsPerSample + " bits");
+        }
+    }
+
+    static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int r = in.read(b, total, len - total);
+            if (r < 0) {
+                throw new EOFException("truncated WAV header");
+            }
+            total += r;
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long s = in.skip(n);
+            if (s <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("truncated WAV header");
+                }
+                s = 1;
+            }
+            n -= s;
+        }
+    }
+
+    private static boolean tag(byte[] b, int off, String t) {
+        for (int i = 0; i < 4; i++) {
+            if (b[off + i] != t.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static short le16(byte[] b, int off) {
+        return (short) ((b[off] & 0xff) | (b[off + 1] << 8));
+    }
+
+    static int le32(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8)
+                | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+    }
+}
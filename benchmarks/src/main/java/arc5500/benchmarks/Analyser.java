@@ -0,0 +1,121 @@
+package arc5500.benchmarks;
+
+/*
+ * Access to the analyser's classes from the benchmarks.
+ *
+ * The analyser lives in the default package, which code in a named package
+ * (as JMH requires of benchmarks) can not refer to. Its constructors and
+ * methods are looked up here as method handles, typed with Object in place
+ * of the analyser's own classes, so a benchmark keeps them in static final
+ * fields and calls them with invokeExact: the JIT then inlines the calls
+ * as if they were direct, and neither reflection nor boxing shows up in the
+ * measurements.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+final class Analyser {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private Analyser() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("the analyser is not on the class path", e);
+        }
+    }
+
+    /*
+     * The constructor of the given class whose parameters fit the given
+     * type; the type returns Object.
+     */
+    static MethodHandle constructor(String className, MethodType type) {
+        for (Constructor<?> c : type(className).getDeclaredConstructors()) {
+            if (fits(c, type, 0)) {
+                c.setAccessible(true);
+                try {
+                    return LOOKUP.unreflectConstructor(c).asType(type);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("no constructor " + className + type);
+    }
+
+    /*
+     * The method of the given class whose parameters fit the given type,
+     * whatever its access. For an instance method the first parameter of
+     * the type is the receiver.
+     */
+    static MethodHandle method(String className, String name, MethodType type) {
+        for (Method m : type(className).getDeclaredMethods()) {
+            int receiver = Modifier.isStatic(m.getModifiers()) ? 0 : 1;
+            if (m.getName().equals(name) && fits(m, type, receiver)) {
+                m.setAccessible(true);
+                try {
+                    return LOOKUP.unreflect(m).asType(type);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("no method " + className + "."
+                + name + type);
+    }
+
+    /*
+     * The value of a static field of the given class, whatever its access.
+     */
+    static Object field(String className, String name) {
+        try {
+            Field f = type(className).getDeclaredField(name);
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("no field " + className + "."
+                    + name, e);
+        }
+    }
+
+    /*
+     * Same number of parameters, and the same types except where the type
+     * has Object (or Object[]), which stands for any class (or array of
+     * them). Overloads that differ only
+     * in the analyser's classes are told apart by giving those classes
+     * (see type) and then changing the handle's type to Object.
+     */
+    private static boolean fits(Executable e, MethodType type, int receiver) {
+        Class<?>[] p = e.getParameterTypes();
+        if (p.length + receiver != type.parameterCount()) {
+            return false;
+        }
+        for (int i = 0; i < p.length; i++) {
+            Class<?> t = type.parameterType(i + receiver);
+            if (!fits(p[i], t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean fits(Class<?> p, Class<?> t) {
+        if (t == Object.class) {
+            return !p.isPrimitive();
+        }
+        if (t.isArray() && p.isArray()) {
+            return fits(p.getComponentType(), t.getComponentType());
+        }
+        return p == t;
+    }
+}
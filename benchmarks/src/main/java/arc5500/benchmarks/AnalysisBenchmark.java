@@ -0,0 +1,106 @@
+package arc5500.benchmarks;
+
+/*
+ * The analysis of one track, on 30 seconds of synthetic music delivered in
+ * blocks the way PcmNormalizer delivers them: the whole single pass
+ * (TrackAnalyser), and separately the envelope (EnvelopeFingerprinter,
+ * which took over from newRMS) and the landmarks (LandmarkFingerprinter).
+ * The magnitude and RMS sums that checkMag and calRMS used to compute are
+ * part of the TrackAnalyser pass.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class AnalysisBenchmark {
+
+    private static final int BLOCK = (Integer) Analyser.field("PcmNormalizer",
+            "BLOCK_FRAMES");
+
+    private static final MethodType CREATE = MethodType
+            .methodType(Object.class);
+    private static final MethodType START = MethodType.methodType(void.class,
+            Object.class, int.class);
+    private static final MethodType WRITE = MethodType.methodType(void.class,
+            Object.class, short[].class, int.class, int.class);
+    private static final MethodType FINISH = MethodType.methodType(void.class,
+            Object.class);
+
+    private static final MethodHandle TRACK = Analyser.constructor(
+            "TrackAnalyser", CREATE);
+    private static final MethodHandle TRACK_START = Analyser.method(
+            "TrackAnalyser", "start", START);
+    private static final MethodHandle TRACK_WRITE = Analyser.method(
+            "TrackAnalyser", "write", WRITE);
+    private static final MethodHandle TRACK_FINISH = Analyser.method(
+            "TrackAnalyser", "finish", FINISH);
+
+    private static final MethodHandle ENVELOPE = Analyser.constructor(
+            "EnvelopeFingerprinter", CREATE);
+    private static final MethodHandle ENVELOPE_START = Analyser.method(
+            "EnvelopeFingerprinter", "start", START);
+    private static final MethodHandle ENVELOPE_WRITE = Analyser.method(
+            "EnvelopeFingerprinter", "write", WRITE);
+    private static final MethodHandle ENVELOPE_FINISH = Analyser.method(
+            "EnvelopeFingerprinter", "finish", FINISH);
+
+    private static final MethodHandle LANDMARKS = Analyser.constructor(
+            "LandmarkFingerprinter", CREATE);
+    private static final MethodHandle LANDMARKS_START = Analyser.method(
+            "LandmarkFingerprinter", "start", START);
+    private static final MethodHandle LANDMARKS_WRITE = Analyser.method(
+            "LandmarkFingerprinter", "write", WRITE);
+    private static final MethodHandle LANDMARKS_FINISH = Analyser.method(
+            "LandmarkFingerprinter", "finish", FINISH);
+
+    private short[] samples;
+
+    @Setup
+    public void setUp() {
+        samples = Synthetic.song(30, 1);
+    }
+
+    @Benchmark
+    public Object trackAnalyser() throws Throwable {
+        Object sink = (Object) TRACK.invokeExact();
+        TRACK_START.invokeExact(sink, Synthetic.SAMPLE_RATE);
+        for (int i = 0; i < samples.length; i += BLOCK) {
+            TRACK_WRITE.invokeExact(sink, samples, i,
+                    Math.min(BLOCK, samples.length - i));
+        }
+        TRACK_FINISH.invokeExact(sink);
+        return sink;
+    }
+
+    @Benchmark
+    public Object envelope() throws Throwable {
+        Object sink = (Object) ENVELOPE.invokeExact();
+        ENVELOPE_START.invokeExact(sink, Synthetic.SAMPLE_RATE);
+        for (int i = 0; i < samples.length; i += BLOCK) {
+            ENVELOPE_WRITE.invokeExact(sink, samples, i,
+                    Math.min(BLOCK, samples.length - i));
+        }
+        ENVELOPE_FINISH.invokeExact(sink);
+        return sink;
+    }
+
+    @Benchmark
+    public Object landmarks() throws Throwable {
+        Object sink = (Object) LANDMARKS.invokeExact();
+        LANDMARKS_START.invokeExact(sink, Synthetic.SAMPLE_RATE);
+        for (int i = 0; i < samples.length; i += BLOCK) {
+            LANDMARKS_WRITE.invokeExact(sink, samples, i,
+                    Math.min(BLOCK, samples.length - i));
+        }
+        LANDMARKS_FINISH.invokeExact(sink);
+        return sink;
+    }
+}
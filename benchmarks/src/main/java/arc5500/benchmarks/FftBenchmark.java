@@ -0,0 +1,133 @@
+package arc5500.benchmarks;
+
+/*
+ * FFT.fft, the Complex[] transform, and FFTPlan.realForward, the primitive
+ * transform the landmark fingerprinter runs on every STFT frame, at sizes
+ * from 2^8 to 2^20. Each operation transforms a fresh copy of the same
+ * random input.
+ *
+ * realForwardAll transforms a batch of 2^20 points in frames of that size
+ * with ParallelFFT, as the landmark fingerprinter does when there are
+ * fewer files than threads, on a pool of 1 to 8 threads; its throughput
+ * should grow with the threads up to the number of cores.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class FftBenchmark {
+
+    private static final MethodHandle COMPLEX = Analyser.constructor(
+            "Complex", MethodType.methodType(Object.class, double.class,
+                    double.class));
+    private static final MethodHandle FFT = Analyser.method("FFT", "fft",
+            MethodType.methodType(void.class, Object[].class));
+    private static final MethodHandle FOR_SIZE = Analyser.method("FFTPlan",
+            "forSize", MethodType.methodType(Object.class, int.class));
+    private static final MethodHandle REAL_FORWARD = Analyser.method(
+            "FFTPlan", "realForward", MethodType.methodType(void.class,
+                    Object.class, double[].class, double[].class,
+                    double[].class));
+    private static final MethodHandle PARALLEL_FFT = Analyser.constructor(
+            "ParallelFFT", MethodType.methodType(Object.class,
+                    ForkJoinPool.class));
+    private static final MethodHandle REAL_FORWARD_ALL = Analyser.method(
+            "ParallelFFT", "realForwardAll", MethodType.methodType(void.class,
+                    Object.class, double[][].class, double[][].class,
+                    double[][].class));
+
+    // points in a realForwardAll batch
+    private static final int BATCH_POINTS = 1 << 20;
+
+    @Param({ "256", "1024", "4096", "16384", "65536", "262144", "1048576" })
+    public int size;
+
+    private Object[] input;
+    private Object[] complex;
+    private Object plan;
+    private double[] samples;
+    private double[] re;
+    private double[] im;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Random r = new Random(42);
+        input = (Object[]) Array.newInstance(Analyser.type("Complex"), size);
+        samples = new double[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = r.nextGaussian();
+            input[i] = (Object) COMPLEX.invokeExact(samples[i], 0.0);
+        }
+        complex = input.clone();
+        plan = (Object) FOR_SIZE.invokeExact(size);
+        re = new double[size / 2 + 1];
+        im = new double[size / 2 + 1];
+    }
+
+    @Benchmark
+    public Object[] fft() throws Throwable {
+        System.arraycopy(input, 0, complex, 0, size);
+        FFT.invokeExact(complex);
+        return complex;
+    }
+
+    @Benchmark
+    public double[] realForward() throws Throwable {
+        REAL_FORWARD.invokeExact(plan, samples, re, im);
+        return re;
+    }
+
+    @Benchmark
+    public double[][] realForwardAll(Batch batch) throws Throwable {
+        REAL_FORWARD_ALL.invokeExact(batch.fft, batch.frames, batch.re,
+                batch.im);
+        return batch.re;
+    }
+
+    // BATCH_POINTS of random frames of the benchmark's size, and the pool
+    @State(Scope.Thread)
+    public static class Batch {
+
+        @Param({ "1", "2", "4", "8" })
+        public int threads;
+
+        private ForkJoinPool pool;
+        private Object fft;
+        private double[][] frames;
+        private double[][] re;
+        private double[][] im;
+
+        @Setup
+        public void setUp(FftBenchmark benchmark) throws Throwable {
+            int size = benchmark.size;
+            Random r = new Random(42);
+            int n = Math.max(1, BATCH_POINTS / size);
+            frames = new double[n][size];
+            re = new double[n][size / 2 + 1];
+            im = new double[n][size / 2 + 1];
+            for (double[] frame : frames) {
+                for (int i = 0; i < size; i++) {
+                    frame[i] = r.nextGaussian();
+                }
+            }
+            pool = new ForkJoinPool(threads);
+            fft = (Object) PARALLEL_FFT.invokeExact(pool);
+        }
+
+        @TearDown
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package arc5500.benchmarks;
+
+/*
+ * Format detection (AudioFormatSniffer) of a WAV file, an MP3 file that
+ * starts with an ID3v2 tag, and a file that is neither, all written to a
+ * temporary directory. sniff reads the file every time, as the first
+ * detection of a file does; detect is the cached lookup every later check
+ * of the same file makes.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class FormatBenchmark {
+
+    private static final MethodHandle SNIFF = Analyser.method(
+            "AudioFormatSniffer", "sniff", MethodType.methodType(
+                    Object.class, File.class));
+    private static final MethodHandle DETECT = Analyser.method(
+            "AudioFormatSniffer", "detect", MethodType.methodType(
+                    Object.class, File.class));
+
+    // MPEG-1 Layer III, 128 kbit/s, 44100 Hz: 417 byte frames
+    private static final byte[] MP3_HEADER = { (byte) 0xff, (byte) 0xfb,
+            (byte) 0x90, 0x64 };
+    private static final int MP3_FRAME = 417;
+
+    @Param({ "wav", "mp3", "unknown" })
+    public String format;
+
+    private File dir;
+    private File file;
+
+    @Setup
+    public void setUp() throws Throwable {
+        dir = Files.createTempDirectory("arc5500-bench").toFile();
+        file = new File(dir, "input." + format);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (format.equals("wav")) {
+                out.write(wavHeader(Synthetic.SAMPLE_RATE, 65536));
+                out.write(new byte[2 * 65536]);
+            } else if (format.equals("mp3")) {
+                // a 1 KB ID3v2 tag, then the audio frames
+                out.write(new byte[] { 'I', 'D', '3', 3, 0, 0, 0, 0, 8, 0 });
+                out.write(new byte[1024]);
+                for (int i = 0; i < 64; i++) {
+                    out.write(MP3_HEADER);
+                    out.write(new byte[MP3_FRAME - MP3_HEADER.length]);
+                }
+            } else {
+                byte[] noise = new byte[65536];
+                new Random(3).nextBytes(noise);
+                out.write(noise);
+            }
+        } finally {
+            out.close();
+        }
+        Object detected = (Object) SNIFF.invokeExact(file);
+        if (!detected.toString().equalsIgnoreCase(format.equals("wav") ? "wave"
+                : format)) {
+            throw new IllegalStateException(file + " detected as " + detected);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        dir.delete();
+    }
+
+    private static byte[] wavHeader(int sampleRate, int samples) {
+        ByteBuffer b = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[] { 'R', 'I', 'F', 'F' }).putInt(36 + 2 * samples);
+        b.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        b.putInt(16).putShort((short) 1).putShort((short) 1);
+        b.putInt(sampleRate).putInt(2 * sampleRate);
+        b.putShort((short) 2).putShort((short) 16);
+        b.put(new byte[] { 'd', 'a', 't', 'a' }).putInt(2 * samples);
+        return b.array();
+    }
+
+    @Benchmark
+    public Object sniff() throws Throwable {
+        return (Object) SNIFF.invokeExact(file);
+    }
+
+    @Benchmark
+    public Object detect() throws Throwable {
+        return (Object) DETECT.invokeExact(file);
+    }
+}
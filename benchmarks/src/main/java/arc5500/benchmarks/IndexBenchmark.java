@@ -0,0 +1,150 @@
+package arc5500.benchmarks;
+
+/*
+ * FingerprintIndex against the pairwise scan it replaces: a catalog of 3
+ * minute tracks and a quarter as many 30 second excerpts, half of them cut
+ * from catalog tracks with 3% of their windows flipped, the rest made up.
+ *
+ * pairwise searches every excerpt in every track (ExcerptSearch over the
+ * envelopes). index builds a FingerprintIndex over all of them, looks
+ * every excerpt up and searches only the candidate tracks, as
+ * Arc5500.checkMatchForFiles does when both pathspecs are directories.
+ * Both return the number of matches, which must agree. The landmarks are
+ * left empty, so only the envelope side of the index is measured.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class IndexBenchmark {
+
+    private static final int TRACK_WINDOWS = 1800;
+    private static final int EXCERPT_WINDOWS = 300;
+    private static final int SAMPLES_PER_WINDOW = Synthetic.SAMPLE_RATE / 10;
+
+    private static final MethodHandle FINGERPRINT = Analyser.constructor(
+            "Fingerprint", MethodType.methodType(Object.class, int.class));
+    private static final MethodHandle ADD = Analyser.method("Fingerprint",
+            "add", MethodType.methodType(void.class, Object.class,
+                    boolean.class));
+    private static final MethodHandle PYRAMID = Analyser.constructor(
+            "EnvelopePyramid", MethodType.methodType(Object.class, int.class,
+                    Object.class, Object.class));
+    private static final MethodHandle LANDMARKS = Analyser.constructor(
+            "LandmarkFingerprint", MethodType.methodType(Object.class,
+                    double.class));
+    private static final MethodHandle TRACK = Analyser.constructor("Track",
+            MethodType.methodType(Object.class, String.class, String.class,
+                    long.class, int.class, double.class, Object.class,
+                    Object.class));
+    private static final MethodHandle GET_ENVELOPE = Analyser.method("Track",
+            "getEnvelope", MethodType.methodType(Object.class, Object.class));
+    private static final MethodHandle SEARCH = Analyser.method(
+            "ExcerptSearch", "search", MethodType.methodType(Object.class,
+                    Analyser.type("Fingerprint"), Analyser.type("Fingerprint")))
+            .asType(MethodType.methodType(Object.class, Object.class,
+                    Object.class));
+    private static final MethodHandle IS_MATCH = Analyser.method(
+            "ExcerptSearch$Result", "isMatch", MethodType.methodType(
+                    boolean.class, Object.class));
+    private static final MethodHandle INDEX = Analyser.constructor(
+            "FingerprintIndex", MethodType.methodType(Object.class,
+                    List.class));
+    private static final MethodHandle CANDIDATES = Analyser.method(
+            "FingerprintIndex", "candidates", MethodType.methodType(
+                    BitSet.class, Object.class, int.class));
+
+    @Param({ "100", "400" })
+    public int tracks;
+
+    // catalog tracks first, then the excerpts
+    private List<Object> all;
+    private Object[] envelopes;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Random r = new Random(4);
+        all = new ArrayList<Object>();
+        List<boolean[]> windows = new ArrayList<boolean[]>();
+        for (int t = 0; t < tracks; t++) {
+            boolean[] w = Synthetic.windows(TRACK_WINDOWS, 100 + t);
+            windows.add(w);
+            all.add(track("t" + t, w));
+        }
+        for (int e = 0; e < tracks / 4; e++) {
+            boolean[] w;
+            if (e % 2 == 0) {
+                boolean[] from = windows.get(r.nextInt(tracks));
+                int at = r.nextInt(TRACK_WINDOWS - EXCERPT_WINDOWS);
+                w = new boolean[EXCERPT_WINDOWS];
+                for (int i = 0; i < w.length; i++) {
+                    w[i] = from[at + i] ^ (r.nextInt(100) < 3);
+                }
+            } else {
+                w = Synthetic.windows(EXCERPT_WINDOWS, 10000 + e);
+            }
+            all.add(track("e" + e, w));
+        }
+        envelopes = new Object[all.size()];
+        for (int i = 0; i < envelopes.length; i++) {
+            envelopes[i] = (Object) GET_ENVELOPE.invokeExact(all.get(i));
+        }
+    }
+
+    private static Object track(String name, boolean[] windows)
+            throws Throwable {
+        Object envelope = (Object) FINGERPRINT.invokeExact(windows.length);
+        for (boolean w : windows) {
+            ADD.invokeExact(envelope, w);
+        }
+        Object pyramid = (Object) PYRAMID.invokeExact(Synthetic.SAMPLE_RATE,
+                envelope, (Object) FINGERPRINT.invokeExact(0));
+        Object landmarks = (Object) LANDMARKS.invokeExact(0.1);
+        return (Object) TRACK.invokeExact(name, name, (long) windows.length
+                * SAMPLES_PER_WINDOW, Synthetic.SAMPLE_RATE, 1.0, pyramid,
+                landmarks);
+    }
+
+    @Benchmark
+    public int pairwise() throws Throwable {
+        int matches = 0;
+        for (int e = tracks; e < envelopes.length; e++) {
+            for (int t = 0; t < tracks; t++) {
+                if ((boolean) IS_MATCH.invokeExact((Object) SEARCH
+                        .invokeExact(envelopes[e], envelopes[t]))) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int index() throws Throwable {
+        Object index = (Object) INDEX.invokeExact(all);
+        int matches = 0;
+        for (int e = tracks; e < envelopes.length; e++) {
+            BitSet candidates = (BitSet) CANDIDATES.invokeExact(index, e);
+            for (int t = candidates.nextSetBit(0); t >= 0 && t < tracks;
+                    t = candidates.nextSetBit(t + 1)) {
+                if ((boolean) IS_MATCH.invokeExact((Object) SEARCH
+                        .invokeExact(envelopes[e], envelopes[t]))) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+}
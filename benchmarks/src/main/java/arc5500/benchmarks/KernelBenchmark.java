@@ -0,0 +1,84 @@
+package arc5500.benchmarks;
+
+/*
+ * The two Kernels, Kernels.Scalar against VectorKernels: the energy of 10
+ * minutes of 11025 Hz samples (sumOfSquaredMagnitudes, the envelope and
+ * RMS stage) and the full alignment profile of a 30 or 300 second excerpt
+ * against a one hour track (distance at every offset with no limit, the
+ * worst case of the envelope search). The forks run with the incubating
+ * Vector API module added.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class KernelBenchmark {
+
+    private static final int SAMPLES = 600 * Synthetic.SAMPLE_RATE;
+    private static final int TRACK_WINDOWS = 36000;
+
+    private static final MethodHandle SCALAR = Analyser.constructor(
+            "Kernels$Scalar", MethodType.methodType(Object.class));
+    private static final MethodHandle VECTOR = Analyser.constructor(
+            "VectorKernels", MethodType.methodType(Object.class));
+    private static final MethodHandle SUM = Analyser.method("Kernels",
+            "sumOfSquaredMagnitudes", MethodType.methodType(long.class,
+                    Object.class, short[].class, int.class, int.class));
+    private static final MethodHandle DISTANCE = Analyser.method("Kernels",
+            "distance", MethodType.methodType(int.class, Object.class,
+                    long[].class, int.class, long[].class, int.class,
+                    int.class));
+
+    @Param({ "scalar", "vector" })
+    public String kernels;
+
+    @Param({ "300", "3000" })
+    public int excerptWindows;
+
+    private Object instance;
+    private short[] samples;
+    private long[] small;
+    private long[] large;
+
+    @Setup
+    public void setUp() throws Throwable {
+        instance = kernels.equals("vector") ? (Object) VECTOR.invokeExact()
+                : (Object) SCALAR.invokeExact();
+        samples = Synthetic.song(SAMPLES / Synthetic.SAMPLE_RATE, 1);
+        Random r = new Random(3);
+        small = new long[(excerptWindows + 63) / 64];
+        large = new long[(TRACK_WINDOWS + 63) / 64];
+        for (int i = 0; i < small.length; i++) {
+            small[i] = r.nextLong();
+        }
+        for (int i = 0; i < large.length; i++) {
+            large[i] = r.nextLong();
+        }
+        small[small.length - 1] &= (1L << (excerptWindows & 63)) - 1;
+        large[large.length - 1] &= (1L << (TRACK_WINDOWS & 63)) - 1;
+    }
+
+    @Benchmark
+    public long energy() throws Throwable {
+        return (long) SUM.invokeExact(instance, samples, 0, samples.length);
+    }
+
+    @Benchmark
+    public long profile() throws Throwable {
+        long total = 0;
+        for (int s = 0; s <= TRACK_WINDOWS - excerptWindows; s++) {
+            total += (int) DISTANCE.invokeExact(instance, small,
+                    excerptWindows, large, s, Integer.MAX_VALUE);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,178 @@
+package arc5500.benchmarks;
+
+/*
+ * The two searches of a pair (see Arc5500.matchOffset) at realistic
+ * lengths: a 30 second excerpt against a 5 minute track, once where the
+ * excerpt occurs in the track and once where it does not.
+ *
+ * search is checkMatch, ExcerptSearch over the rise/fall fingerprints,
+ * with 3% of the excerpt's windows flipped when it is present. align is
+ * checkLandmarkMatch, LandmarkFingerprint.align over the landmarks of
+ * synthetic music.
+ *
+ * envelope and pyramid are checkMatch over the envelopes of that music:
+ * envelope scans the 100 ms level alone, pyramid searches the
+ * EnvelopePyramids, which also refines the offset to 10 ms.
+ */
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class MatchBenchmark {
+
+    private static final int TRACK_SECONDS = 300;
+    private static final int EXCERPT_SECONDS = 30;
+    private static final int EXCERPT_AT = 120;
+
+    private static final MethodHandle FINGERPRINT = Analyser.constructor(
+            "Fingerprint", MethodType.methodType(Object.class, int.class));
+    private static final MethodHandle ADD = Analyser.method("Fingerprint",
+            "add", MethodType.methodType(void.class, Object.class,
+                    boolean.class));
+    private static final MethodHandle SEARCH = Analyser.method(
+            "ExcerptSearch", "search", MethodType.methodType(Object.class,
+                    Analyser.type("Fingerprint"), Analyser.type("Fingerprint")))
+            .asType(MethodType.methodType(Object.class, Object.class,
+                    Object.class));
+
+    private static final MethodHandle LANDMARKS = Analyser.constructor(
+            "LandmarkFingerprinter", MethodType.methodType(Object.class));
+    private static final MethodHandle LANDMARKS_START = Analyser.method(
+            "LandmarkFingerprinter", "start", MethodType.methodType(
+                    void.class, Object.class, int.class));
+    private static final MethodHandle LANDMARKS_WRITE = Analyser.method(
+            "LandmarkFingerprinter", "write", MethodType.methodType(
+                    void.class, Object.class, short[].class, int.class,
+                    int.class));
+    private static final MethodHandle LANDMARKS_FINISH = Analyser.method(
+            "LandmarkFingerprinter", "finish", MethodType.methodType(
+                    void.class, Object.class));
+    private static final MethodHandle GET_FINGERPRINT = Analyser.method(
+            "LandmarkFingerprinter", "getFingerprint", MethodType
+                    .methodType(Object.class, Object.class));
+    private static final MethodHandle ENVELOPES = Analyser.constructor(
+            "EnvelopeFingerprinter", MethodType.methodType(Object.class));
+    private static final MethodHandle ENVELOPES_START = Analyser.method(
+            "EnvelopeFingerprinter", "start", MethodType.methodType(
+                    void.class, Object.class, int.class));
+    private static final MethodHandle ENVELOPES_WRITE = Analyser.method(
+            "EnvelopeFingerprinter", "write", MethodType.methodType(
+                    void.class, Object.class, short[].class, int.class,
+                    int.class));
+    private static final MethodHandle ENVELOPES_FINISH = Analyser.method(
+            "EnvelopeFingerprinter", "finish", MethodType.methodType(
+                    void.class, Object.class));
+    private static final MethodHandle GET_PYRAMID = Analyser.method(
+            "EnvelopeFingerprinter", "getPyramid", MethodType.methodType(
+                    Object.class, Object.class));
+    private static final MethodHandle GET_ENVELOPE = Analyser.method(
+            "EnvelopePyramid", "getEnvelope", MethodType.methodType(
+                    Object.class, Object.class));
+    private static final MethodHandle SEARCH_PYRAMIDS = Analyser.method(
+            "ExcerptSearch", "search", MethodType.methodType(Object.class,
+                    Analyser.type("EnvelopePyramid"), Analyser
+                            .type("EnvelopePyramid"))).asType(MethodType
+            .methodType(Object.class, Object.class, Object.class));
+    private static final MethodHandle ALIGN = Analyser.method(
+            "LandmarkFingerprint", "align", MethodType.methodType(
+                    Object.class, Object.class, Object.class));
+
+    @Param({ "present", "absent" })
+    public String excerpt;
+
+    private Object largeEnvelope;
+    private Object smallEnvelope;
+    private Object largeLandmarks;
+    private Object smallLandmarks;
+    private Object largePyramid;
+    private Object smallPyramid;
+    private Object largeLevel;
+    private Object smallLevel;
+
+    @Setup
+    public void setUp() throws Throwable {
+        int windowsPerSecond = (Integer) Analyser.field(
+                "EnvelopeFingerprinter", "WINDOWS_PER_SECOND");
+        boolean[] track = Synthetic.windows(TRACK_SECONDS * windowsPerSecond, 1);
+        boolean[] part = new boolean[EXCERPT_SECONDS * windowsPerSecond];
+        if (excerpt.equals("present")) {
+            Random r = new Random(2);
+            for (int i = 0; i < part.length; i++) {
+                part[i] = track[EXCERPT_AT * windowsPerSecond + i]
+                        ^ (r.nextInt(100) < 3);
+            }
+        } else {
+            part = Synthetic.windows(part.length, 2);
+        }
+        largeEnvelope = fingerprint(track);
+        smallEnvelope = fingerprint(part);
+
+        short[] song = Synthetic.song(TRACK_SECONDS, 1);
+        short[] clip = new short[EXCERPT_SECONDS * Synthetic.SAMPLE_RATE];
+        if (excerpt.equals("present")) {
+            System.arraycopy(song, EXCERPT_AT * Synthetic.SAMPLE_RATE, clip,
+                    0, clip.length);
+        } else {
+            clip = Synthetic.song(EXCERPT_SECONDS, 2);
+        }
+        largeLandmarks = landmarks(song);
+        smallLandmarks = landmarks(clip);
+        largePyramid = pyramid(song);
+        smallPyramid = pyramid(clip);
+        largeLevel = (Object) GET_ENVELOPE.invokeExact(largePyramid);
+        smallLevel = (Object) GET_ENVELOPE.invokeExact(smallPyramid);
+    }
+
+    private static Object pyramid(short[] samples) throws Throwable {
+        Object sink = (Object) ENVELOPES.invokeExact();
+        ENVELOPES_START.invokeExact(sink, Synthetic.SAMPLE_RATE);
+        ENVELOPES_WRITE.invokeExact(sink, samples, 0, samples.length);
+        ENVELOPES_FINISH.invokeExact(sink);
+        return (Object) GET_PYRAMID.invokeExact(sink);
+    }
+
+    private static Object fingerprint(boolean[] windows) throws Throwable {
+        Object f = (Object) FINGERPRINT.invokeExact(windows.length);
+        for (boolean w : windows) {
+            ADD.invokeExact(f, w);
+        }
+        return f;
+    }
+
+    private static Object landmarks(short[] samples) throws Throwable {
+        Object sink = (Object) LANDMARKS.invokeExact();
+        LANDMARKS_START.invokeExact(sink, Synthetic.SAMPLE_RATE);
+        LANDMARKS_WRITE.invokeExact(sink, samples, 0, samples.length);
+        LANDMARKS_FINISH.invokeExact(sink);
+        return (Object) GET_FINGERPRINT.invokeExact(sink);
+    }
+
+    @Benchmark
+    public Object search() throws Throwable {
+        return (Object) SEARCH.invokeExact(smallEnvelope, largeEnvelope);
+    }
+
+    @Benchmark
+    public Object envelope() throws Throwable {
+        return (Object) SEARCH.invokeExact(smallLevel, largeLevel);
+    }
+
+    @Benchmark
+    public Object pyramid() throws Throwable {
+        return (Object) SEARCH_PYRAMIDS.invokeExact(smallPyramid, largePyramid);
+    }
+
+    @Benchmark
+    public Object align() throws Throwable {
+        return (Object) ALIGN.invokeExact(largeLandmarks, smallLandmarks);
+    }
+}
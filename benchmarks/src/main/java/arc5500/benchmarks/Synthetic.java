@@ -0,0 +1,54 @@
+package arc5500.benchmarks;
+
+/*
+ * Deterministic synthetic inputs for the benchmarks: music-like audio made
+ * of short two-tone notes of random pitch and loudness, and rise/fall
+ * fingerprints.
+ */
+import java.util.Random;
+
+final class Synthetic {
+
+    static final int SAMPLE_RATE = 11025;
+
+    private static final int[] PITCHES = { 220, 247, 262, 294, 330, 349, 392,
+            440, 494, 523, 587, 659, 698, 784, 880 };
+    private static final double[] INTERVALS = { 1.25, 1.5, 2.0 };
+
+    private Synthetic() {
+    }
+
+    // mono 16 bit samples at SAMPLE_RATE
+    static short[] song(double seconds, long seed) {
+        Random r = new Random(seed);
+        short[] out = new short[(int) (seconds * SAMPLE_RATE)];
+        int i = 0;
+        while (i < out.length) {
+            int note = SAMPLE_RATE * (1 + r.nextInt(3)) / 10;
+            double f1 = PITCHES[r.nextInt(PITCHES.length)] * (1 + r.nextInt(2));
+            double f2 = f1 * INTERVALS[r.nextInt(INTERVALS.length)];
+            int amplitude = 1500 + r.nextInt(12500);
+            for (int k = 0; k < note && i < out.length; k++, i++) {
+                double t = (double) i / SAMPLE_RATE;
+                double envelope = Math.min(1, k / 300.0)
+                        * Math.max(0.2, 1 - (double) k / note);
+                double v = amplitude * envelope
+                        * (Math.sin(2 * Math.PI * f1 * t) + 0.5
+                                * Math.sin(2 * Math.PI * f2 * t));
+                out[i] = (short) Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, v));
+            }
+        }
+        return out;
+    }
+
+    // random rise/fall windows, about half of them rising
+    static boolean[] windows(int length, long seed) {
+        Random r = new Random(seed);
+        boolean[] bits = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            bits[i] = r.nextBoolean();
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,189 @@
+
+/*
+ * Checks the detection of AudioFormatSniffer on small files written for
+ * each case: a RIFF/WAVE header, an MPEG audio frame header at the start,
+ * further in (only with a second frame where the first one ends), and
+ * after an ID3v2 tag of any length, and files that only look like one of
+ * those. The fixtures of JLayerMp3DecoderTest are detected as what they
+ * are, and a file that changes is detected again rather than remembered.
+ */
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AudioFormatSnifferTest {
+
+    // MPEG-1 Layer III, 128 kbit/s, 44.1 kHz, no padding: 417 byte frames
+    private static final byte[] FRAME = { (byte) 0xff, (byte) 0xfb,
+            (byte) 0x90, 0x00 };
+    private static final int FRAME_LENGTH = 417;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void wave() throws Exception {
+        byte[] b = filler(100);
+        put(b, 0, "RIFF");
+        put(b, 8, "WAVE");
+        assertEquals(AudioFormatSniffer.Format.WAVE, detect(b));
+    }
+
+    @Test
+    public void riffThatIsNotWave() throws Exception {
+        byte[] b = filler(100);
+        put(b, 0, "RIFF");
+        put(b, 8, "AVI ");
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect(b));
+    }
+
+    @Test
+    public void frameAtStart() throws Exception {
+        byte[] b = filler(100);
+        System.arraycopy(FRAME, 0, b, 0, 4);
+        assertEquals(AudioFormatSniffer.Format.MP3, detect(b));
+    }
+
+    @Test
+    public void framesFurtherIn() throws Exception {
+        byte[] b = filler(2000);
+        System.arraycopy(FRAME, 0, b, 300, 4);
+        // a lone header in the middle of a file is not enough
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect(b));
+        System.arraycopy(FRAME, 0, b, 300 + FRAME_LENGTH, 4);
+        assertEquals(AudioFormatSniffer.Format.MP3, detect(b));
+    }
+
+    @Test
+    public void invalidHeaders() throws Exception {
+        // reserved version, Layer I, bad bitrate, reserved sample rate
+        byte[][] headers = { { (byte) 0xff, (byte) 0xeb, (byte) 0x90, 0 },
+                { (byte) 0xff, (byte) 0xff, (byte) 0x90, 0 },
+                { (byte) 0xff, (byte) 0xfb, (byte) 0xf0, 0 },
+                { (byte) 0xff, (byte) 0xfb, (byte) 0x9c, 0 } };
+        for (byte[] h : headers) {
+            byte[] b = filler(100);
+            System.arraycopy(h, 0, b, 0, 4);
+            assertEquals(Arrays.toString(h), AudioFormatSniffer.Format.UNKNOWN,
+                    detect(b));
+        }
+    }
+
+    @Test
+    public void id3v2Tag() throws Exception {
+        // a tag longer than the probe, with its size syncsafe: 5000 bytes
+        int size = 5000;
+        byte[] b = filler(10 + size + 100);
+        id3(b, size, false);
+        System.arraycopy(FRAME, 0, b, 10 + size, 4);
+        assertEquals(AudioFormatSniffer.Format.MP3, detect(b));
+    }
+
+    @Test
+    public void id3v2TagWithFooter() throws Exception {
+        int size = 200;
+        byte[] b = filler(10 + size + 10 + 2 * FRAME_LENGTH);
+        id3(b, size, true);
+        // after a tag the frame has to be confirmed by the next one
+        System.arraycopy(FRAME, 0, b, 10 + size + 10, 4);
+        System.arraycopy(FRAME, 0, b, 10 + size + 10 + FRAME_LENGTH, 4);
+        assertEquals(AudioFormatSniffer.Format.MP3, detect(b));
+    }
+
+    @Test
+    public void id3v2TagWithoutAudio() throws Exception {
+        byte[] b = filler(1000);
+        id3(b, 200, false);
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect(b));
+    }
+
+    @Test
+    public void shortAndEmptyFiles() throws Exception {
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect(new byte[0]));
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect("RIFF"
+                .getBytes("US-ASCII")));
+        assertEquals(AudioFormatSniffer.Format.UNKNOWN, detect(new byte[] {
+                (byte) 0xff, (byte) 0xfb }));
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        for (String name : new String[] { "stereo44", "mono22", "notag22" }) {
+            assertEquals(name, AudioFormatSniffer.Format.MP3,
+                    AudioFormatSniffer.detect(resource(name + ".mp3")));
+            assertEquals(name, AudioFormatSniffer.Format.WAVE,
+                    AudioFormatSniffer.detect(resource(name + ".lame.wav")));
+        }
+    }
+
+    @Test
+    public void changedFileIsDetectedAgain() throws Exception {
+        File f = folder.newFile();
+        byte[] b = filler(100);
+        put(b, 0, "RIFF");
+        put(b, 8, "WAVE");
+        write(f, b);
+        f.setLastModified(1000000000000L);
+        assertEquals(AudioFormatSniffer.Format.WAVE, AudioFormatSniffer
+                .detect(f));
+        System.arraycopy(FRAME, 0, b, 0, 4);
+        write(f, b);
+        f.setLastModified(1000000060000L);
+        assertEquals(AudioFormatSniffer.Format.MP3, AudioFormatSniffer
+                .detect(f));
+    }
+
+    // detects the format of a new file holding the given bytes
+    private AudioFormatSniffer.Format detect(byte[] content)
+            throws IOException {
+        File f = folder.newFile();
+        write(f, content);
+        return AudioFormatSniffer.detect(f);
+    }
+
+    // an ID3v2.4 header for a tag of the given size at the start of b
+    private static void id3(byte[] b, int size, boolean footer) {
+        put(b, 0, "ID3");
+        b[3] = 4;
+        b[4] = 0;
+        b[5] = (byte) (footer ? 0x10 : 0);
+        b[6] = (byte) ((size >> 21) & 0x7f);
+        b[7] = (byte) ((size >> 14) & 0x7f);
+        b[8] = (byte) ((size >> 7) & 0x7f);
+        b[9] = (byte) (size & 0x7f);
+    }
+
+    // n bytes that can not be taken for a frame header
+    private static byte[] filler(int n) {
+        byte[] b = new byte[n];
+        Arrays.fill(b, (byte) 'x');
+        return b;
+    }
+
+    private static void put(byte[] b, int at, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            b[at + i] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private static void write(File f, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File resource(String name) throws Exception {
+        return new File(AudioFormatSnifferTest.class.getResource("/" + name)
+                .toURI());
+    }
+}
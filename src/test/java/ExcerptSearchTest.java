@@ -0,0 +1,144 @@
+
+/*
+ * Checks ExcerptSearch against the loop it replaced in Arc5500.checkMatch,
+ * kept below as oldSearch with its Boolean lists unboxed and its output
+ * turned into a return value: that loop accepted the first offset where
+ * at most n/20 + 2 windows differ, ExcerptSearch the closest such offset.
+ * On random fingerprints, with and without an excerpt planted in them,
+ * both have to agree on whether there is a match, the offset ExcerptSearch
+ * reports must be no further off than the old one, and a planted excerpt
+ * that occurs nowhere else is found where it was planted.
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExcerptSearchTest {
+
+    @Test
+    public void agreesWithOldLoop() {
+        Random r = new Random(8);
+        for (int round = 0; round < 2000; round++) {
+            boolean[] large = random(r, 1 + r.nextInt(300), r.nextInt(4));
+            boolean[] small;
+            if (round % 2 == 0 || large.length < 2) {
+                small = random(r, 1 + r.nextInt(40), r.nextInt(4));
+            } else {
+                int n = 1 + r.nextInt(large.length - 1);
+                int planted = r.nextInt(large.length - n + 1);
+                small = Arrays.copyOfRange(large, planted, planted + n);
+                // a few differences, sometimes one more than tolerated
+                int flips = r.nextInt(ExcerptSearch.threshold(n) + 2);
+                for (int f = 0; f < flips; f++) {
+                    small[r.nextInt(n)] ^= true;
+                }
+            }
+            check(small, large);
+        }
+    }
+
+    @Test
+    public void findsUniqueExcerptWherePlanted() {
+        Random r = new Random(9);
+        for (int round = 0; round < 200; round++) {
+            boolean[] large = random(r, 2000 + r.nextInt(2000), 0);
+            int n = 200 + r.nextInt(400);
+            int planted = r.nextInt(large.length - n + 1);
+            boolean[] small = Arrays.copyOfRange(large, planted, planted + n);
+            for (int f = 0; f < ExcerptSearch.threshold(n); f++) {
+                small[r.nextInt(n)] ^= true;
+            }
+            ExcerptSearch.Result result = ExcerptSearch.search(
+                    fingerprint(small), fingerprint(large));
+            assertTrue(result.isMatch());
+            assertEquals(planted, result.getOffset());
+            assertEquals(planted, oldSearch(small, large));
+        }
+    }
+
+    private static void check(boolean[] small, boolean[] large) {
+        Fingerprint s = fingerprint(small);
+        Fingerprint l = fingerprint(large);
+        ExcerptSearch.Result result = ExcerptSearch.search(s, l);
+        int old = oldSearch(small, large);
+        String what = small.length + " in " + large.length;
+        assertEquals(what, old >= 0, result.isMatch());
+        if (old >= 0) {
+            int k = ExcerptSearch.threshold(small.length);
+            assertEquals(what, l.distance(s, result.getOffset()),
+                    result.getDistance());
+            assertTrue(what, result.getDistance() <= l.distance(s, old));
+            assertTrue(what, result.getDistance() <= k);
+            // ties go to the earliest offset
+            for (int o = 0; o < result.getOffset(); o++) {
+                assertTrue(what, l.distance(s, o) > result.getDistance());
+            }
+        }
+    }
+
+    /*
+     * The loop of the original checkMatch: the offset of the first match,
+     * counted by its failed starts, or -1.
+     */
+    private static int oldSearch(boolean[] rmsSmall, boolean[] rmsLarge) {
+        int x = 0;
+        int count1 = 0;
+        int threshold = (int) (rmsSmall.length / 20 + 2);
+        boolean isMatch = false;
+        int exceptions = 0;
+        for (int i = 0; i < rmsLarge.length; i++) {
+            for (int j = x; j < rmsSmall.length;) {
+                if ((i == (rmsLarge.length - 1))
+                        && (j < (rmsSmall.length - 1))) {
+                    isMatch = false;
+                    break;
+                }
+                if ((!(rmsLarge[i] ^ rmsSmall[j]))
+                        || (exceptions < threshold)) {
+                    if (rmsLarge[i] ^ rmsSmall[j]) {
+                        exceptions++;
+                    }
+                    isMatch = true;
+                    x++;
+                    break;
+                } else {
+                    count1++;
+                    if (isMatch) {
+                        i = i - x;
+                        x = 0;
+                    }
+                    isMatch = false;
+                    exceptions = 0;
+                    break;
+                }
+            }
+        }
+        return isMatch ? count1 : -1;
+    }
+
+    /*
+     * n random windows; with bias b > 0 a run of the same window continues
+     * with probability 1 - 1/(b + 1), so that offsets near each other look
+     * alike, as they do in real envelopes.
+     */
+    private static boolean[] random(Random r, int n, int bias) {
+        boolean[] w = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            w[i] = i > 0 && r.nextInt(bias + 1) != 0 ? w[i - 1] : r
+                    .nextBoolean();
+        }
+        return w;
+    }
+
+    private static Fingerprint fingerprint(boolean[] windows) {
+        Fingerprint f = new Fingerprint(windows.length);
+        for (boolean w : windows) {
+            f.add(w);
+        }
+        return f;
+    }
+}
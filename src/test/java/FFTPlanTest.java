@@ -0,0 +1,121 @@
+
+/*
+ * Checks FFTPlan against the discrete Fourier transform computed directly
+ * from its definition, X[k] = sum x[j] exp(-2 pi i j k / N), at every
+ * power of 2 size up to 2^10, as is FFT.fft, the Complex[] adapter over
+ * the plans, and that inverse undoes transform. The direct sums are
+ * computed in double precision too, so the tolerance grows with log N
+ * and with the size of the values summed.
+ */
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FFTPlanTest {
+
+    private static final int MAX_SIZE = 1 << 10;
+
+    @Test
+    public void transformIsTheDft() {
+        Random r = new Random(1);
+        for (int n = 1; n <= MAX_SIZE; n <<= 1) {
+            double[] re = random(r, n);
+            double[] im = random(r, n);
+            double[][] expected = dft(re, im);
+            FFTPlan.forSize(n).transform(re, im);
+            assertClose("transform " + n, expected[0], expected[1], re, im, n);
+        }
+    }
+
+    @Test
+    public void realForwardIsTheDft() {
+        Random r = new Random(2);
+        for (int n = 1; n <= MAX_SIZE; n <<= 1) {
+            double[] x = random(r, n);
+            double[][] expected = dft(x, new double[n]);
+            double[] re = new double[n / 2 + 1];
+            double[] im = new double[n / 2 + 1];
+            FFTPlan.forSize(n).realForward(x, re, im);
+            // only the non-redundant half is computed
+            assertClose("realForward " + n, expected[0], expected[1], re, im,
+                    n);
+        }
+    }
+
+    @Test
+    public void inverseUndoesTransform() {
+        Random r = new Random(3);
+        for (int n = 1; n <= MAX_SIZE; n <<= 1) {
+            double[] re = random(r, n);
+            double[] im = random(r, n);
+            double[] x = re.clone();
+            double[] y = im.clone();
+            FFTPlan plan = FFTPlan.forSize(n);
+            plan.transform(x, y);
+            plan.inverse(x, y);
+            assertClose("inverse " + n, re, im, x, y, n);
+        }
+    }
+
+    @Test
+    public void complexFftIsTheDft() {
+        Random r = new Random(4);
+        for (int n = 1; n <= MAX_SIZE; n <<= 1) {
+            double[] re = random(r, n);
+            double[] im = random(r, n);
+            double[][] expected = dft(re, im);
+            Complex[] x = new Complex[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = new Complex(re[i], im[i]);
+            }
+            FFT.fft(x);
+            for (int i = 0; i < n; i++) {
+                re[i] = x[i].re();
+                im[i] = x[i].im();
+            }
+            assertClose("FFT.fft " + n, expected[0], expected[1], re, im, n);
+        }
+    }
+
+    // the DFT by its definition, with the angles reduced exactly
+    private static double[][] dft(double[] re, double[] im) {
+        int n = re.length;
+        double[][] out = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            double sr = 0;
+            double si = 0;
+            for (int j = 0; j < n; j++) {
+                double a = -2 * Math.PI * ((long) j * k % n) / n;
+                double c = Math.cos(a);
+                double s = Math.sin(a);
+                sr += re[j] * c - im[j] * s;
+                si += re[j] * s + im[j] * c;
+            }
+            out[0][k] = sr;
+            out[1][k] = si;
+        }
+        return out;
+    }
+
+    // the first actualRe.length bins agree within the rounding of size n
+    private static void assertClose(String what, double[] expectedRe,
+            double[] expectedIm, double[] actualRe, double[] actualIm, int n) {
+        double delta = 1e-12 * n * (1 + Integer.numberOfTrailingZeros(n));
+        for (int k = 0; k < actualRe.length; k++) {
+            assertEquals(what + " re[" + k + "]", expectedRe[k], actualRe[k],
+                    delta);
+            assertEquals(what + " im[" + k + "]", expectedIm[k], actualIm[k],
+                    delta);
+        }
+    }
+
+    private static double[] random(Random r, int n) {
+        double[] a = new double[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = r.nextGaussian();
+        }
+        return a;
+    }
+}
@@ -0,0 +1,151 @@
+
+/*
+ * Checks that the FingerprintIndex never rules out a pair that would
+ * match: every random excerpt of a track, with as many windows flipped as
+ * ExcerptSearch tolerates, has to come back as a candidate of the track it
+ * was cut from, and so does every track whose landmarks align with those
+ * of the excerpt (the test Arc5500.checkLandmarkMatch makes). The index
+ * may return more candidates than that, but not fewer.
+ */
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FingerprintIndexTest {
+
+    // samples per envelope window at 11025 Hz
+    private static final long WINDOW = 1103;
+
+    @Test
+    public void noEnvelopeFalseNegatives() {
+        Random r = new Random(7);
+        int references = 200;
+        int excerpts = 400;
+        List<Track> tracks = new ArrayList<Track>();
+        List<boolean[]> windows = new ArrayList<boolean[]>();
+        for (int t = 0; t < references; t++) {
+            boolean[] w = new boolean[600 + r.nextInt(2400)];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = r.nextBoolean();
+            }
+            windows.add(w);
+            tracks.add(track("t" + t, w, w.length * WINDOW));
+        }
+        int[] source = new int[excerpts];
+        for (int e = 0; e < excerpts; e++) {
+            int t = r.nextInt(references);
+            boolean[] w = windows.get(t);
+            // from too short to segment up to long enough for 20 bit keys
+            int s = 20 + r.nextInt(Math.min(w.length - 20, 1200));
+            int o = r.nextInt(w.length - s + 1);
+            boolean[] x = Arrays.copyOfRange(w, o, o + s);
+            for (int f = 0; f < ExcerptSearch.threshold(s); f++) {
+                x[r.nextInt(s)] ^= true;
+            }
+            source[e] = t;
+            // a little shorter, as the excerpt is cut inside its last window
+            tracks.add(track("e" + e, x, s * WINDOW - 5));
+        }
+        FingerprintIndex index = new FingerprintIndex(tracks);
+        for (int e = 0; e < excerpts; e++) {
+            int q = references + e;
+            Fingerprint small = tracks.get(q).getEnvelope();
+            for (int t = 0; t < references; t++) {
+                if (ExcerptSearch.search(small, tracks.get(t).getEnvelope())
+                        .isMatch()) {
+                    assertTrue("e" + e + " in t" + t, index.candidates(q)
+                            .get(t));
+                    assertTrue("e" + e + " in t" + t, index.mayMatch(q, t));
+                }
+            }
+            assertTrue("e" + e, index.candidates(q).get(source[e]));
+        }
+    }
+
+    @Test
+    public void noLandmarkFalseNegatives() {
+        Random r = new Random(11);
+        int references = 8;
+        List<Track> tracks = new ArrayList<Track>();
+        List<short[]> audio = new ArrayList<short[]>();
+        for (int t = 0; t < references; t++) {
+            short[] samples = tones(r, 11025 * (20 + r.nextInt(20)));
+            audio.add(samples);
+            tracks.add(analyse("t" + t, samples, false));
+        }
+        int excerpts = 16;
+        for (int e = 0; e < excerpts; e++) {
+            short[] samples = audio.get(r.nextInt(references));
+            int n = 11025 * (3 + r.nextInt(8));
+            int o = r.nextInt(samples.length - n);
+            short[] x = Arrays.copyOfRange(samples, o, o + n);
+            for (int i = 0; i < n; i++) {
+                x[i] += (short) (r.nextGaussian() * 200);
+            }
+            // without an envelope, so only the landmarks can find it
+            tracks.add(analyse("e" + e, x, true));
+        }
+        FingerprintIndex index = new FingerprintIndex(tracks);
+        int aligned = 0;
+        for (int e = 0; e < excerpts; e++) {
+            int q = references + e;
+            BitSet candidates = index.candidates(q);
+            for (int t = 0; t < references; t++) {
+                LandmarkFingerprint.Match m = tracks.get(t).getLandmarks()
+                        .align(tracks.get(q).getLandmarks());
+                if (m.isMatch() && m.getOffset() >= -1) {
+                    assertTrue("e" + e + " in t" + t, candidates.get(t));
+                    aligned++;
+                }
+            }
+        }
+        // the excerpts do align, or the test would prove nothing
+        assertTrue(aligned >= excerpts);
+    }
+
+    private static Track track(String name, boolean[] w, long samples) {
+        Fingerprint f = new Fingerprint(w.length);
+        for (boolean b : w) {
+            f.add(b);
+        }
+        return new Track(name, name, samples, 11025, 1, new EnvelopePyramid(
+                11025, f, new Fingerprint()), new LandmarkFingerprint(0.1));
+    }
+
+    private static Track analyse(String name, short[] samples,
+            boolean withoutEnvelope) {
+        TrackAnalyser a = new TrackAnalyser();
+        a.start(11025);
+        a.write(samples, 0, samples.length);
+        a.finish();
+        EnvelopePyramid pyramid = withoutEnvelope ? new EnvelopePyramid(
+                11025, new Fingerprint(), new Fingerprint()) : a.getEnvelope();
+        return new Track(name, name, a.getSampleCount(), 11025, a.getRms(),
+                pyramid, a.getLandmarks());
+    }
+
+    // two-note chords that change every 0.1 to 0.3 s
+    private static short[] tones(Random r, int n) {
+        short[] s = new short[n];
+        int i = 0;
+        while (i < n) {
+            double f1 = 220 + r.nextInt(660);
+            double f2 = f1 * 1.5;
+            int amp = 1500 + r.nextInt(12500);
+            int end = Math.min(n, i + 1102 * (1 + r.nextInt(3)));
+            for (int k = 0; i < end; i++, k++) {
+                double t = (double) i / 11025;
+                double env = Math.min(1, k / 300.0);
+                s[i] = (short) (amp * env * (Math.sin(2 * Math.PI * f1 * t)
+                        + 0.5 * Math.sin(2 * Math.PI * f2 * t)));
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,129 @@
+
+/*
+ * Checks JLayerMp3Decoder against lame: each fixture MP3 in
+ * src/test/resources comes with the WAV lame --decode made of it
+ * (NAME.lame.wav), and the in-process decoder has to produce the same
+ * number of samples, aligned to the sample, within a few LSB of lame's.
+ *
+ * The fixtures are one second of synthetic sweeps and tones, encoded and
+ * decoded with LAME 3.98.4 (through jump3r, its Java port): 44.1 kHz
+ * stereo MPEG-1 with a LAME tag, 22.05 kHz mono MPEG-2 with a LAME tag,
+ * and the same without any tag (lame -t), where lame's default encoder
+ * delay applies. When a lame binary is available (see LameMp3Decoder) the
+ * fixtures are also compared against its output directly.
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class JLayerMp3DecoderTest {
+
+    // the decoders round differently; lame's own builds differ by as much
+    private static final int MAX_DIFFERENCE = 64;
+    private static final double MAX_RMS_DIFFERENCE = 16.0;
+
+    @Test
+    public void stereoWithLameTag() throws Exception {
+        check("stereo44", 44100, 44100);
+    }
+
+    @Test
+    public void mpeg2MonoWithLameTag() throws Exception {
+        check("mono22", 22050, 22050);
+    }
+
+    @Test
+    public void withoutTag() throws Exception {
+        check("notag22", 22050, -1);
+    }
+
+    @Test
+    public void sameAsInstalledLame() throws Exception {
+        LameMp3Decoder lame = new LameMp3Decoder();
+        for (String name : new String[] { "stereo44", "mono22", "notag22" }) {
+            Pcm expected = new Pcm();
+            try {
+                lame.decode(resource(name + ".mp3"), expected);
+            } catch (UnsupportedAudioFileException e) {
+                Assume.assumeTrue("lame is not installed", false);
+            }
+            compare(name, expected, decode(name));
+        }
+    }
+
+    @Test(expected = UnsupportedAudioFileException.class)
+    public void rejectsWav() throws Exception {
+        new JLayerMp3Decoder().decode(resource("mono22.lame.wav"), new Pcm());
+    }
+
+    private void check(String name, int rate, int samples) throws Exception {
+        Pcm expected = new Pcm();
+        PcmNormalizer.normalize(resource(name + ".lame.wav"), expected);
+        Pcm actual = decode(name);
+        assertEquals(rate, actual.rate);
+        if (samples >= 0) {
+            assertEquals(samples, actual.length);
+        }
+        compare(name, expected, actual);
+    }
+
+    private static void compare(String name, Pcm expected, Pcm actual) {
+        assertEquals(name + " sample rate", expected.rate, actual.rate);
+        assertEquals(name + " length", expected.length, actual.length);
+        long squares = 0;
+        int max = 0;
+        for (int i = 0; i < actual.length; i++) {
+            int d = Math.abs(actual.samples[i] - expected.samples[i]);
+            max = Math.max(max, d);
+            squares += (long) d * d;
+        }
+        double rms = Math.sqrt((double) squares / actual.length);
+        assertTrue(name + " differs from lame by up to " + max,
+                max <= MAX_DIFFERENCE);
+        assertTrue(name + " differs from lame by " + rms + " RMS",
+                rms <= MAX_RMS_DIFFERENCE);
+    }
+
+    private static Pcm decode(String name) throws Exception {
+        Pcm pcm = new Pcm();
+        new JLayerMp3Decoder().decode(resource(name + ".mp3"), pcm);
+        return pcm;
+    }
+
+    private static File resource(String name) throws URISyntaxException {
+        return new File(JLayerMp3DecoderTest.class.getResource("/" + name)
+                .toURI());
+    }
+
+    // collects everything written to it
+    private static class Pcm implements MonoPcmSink {
+        int rate;
+        short[] samples = new short[0];
+        int length;
+
+        public void start(int sampleRate) {
+            rate = sampleRate;
+        }
+
+        public void write(short[] block, int offset, int n) throws IOException {
+            if (length + n > samples.length) {
+                samples = Arrays.copyOf(samples, Math.max(2 * samples.length,
+                        length + n));
+            }
+            System.arraycopy(block, offset, samples, length, n);
+            length += n;
+        }
+
+        public void finish() {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+
+/*
+ * Checks ParallelFFT against FFTPlan, which it only splits into tasks: the
+ * batches and the single large transform have to give the very same
+ * numbers, and so does the LandmarkFingerprinter when it hands its frames
+ * over in batches. The pool has more threads than this test is likely to
+ * get cores, so the tasks really do interleave.
+ */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelFFTTest {
+
+    private static ForkJoinPool pool;
+    private static ParallelFFT fft;
+
+    @BeforeClass
+    public static void startPool() {
+        pool = new ForkJoinPool(4);
+        fft = new ParallelFFT(pool);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void transformAll() {
+        Random r = new Random(1);
+        // sizes above and below ParallelFFT.TASK_POINTS, mixed
+        int[] sizes = { 1, 2, 256, 1024, 1 << 15, 64, 1 << 14, 8 };
+        double[][] re = new double[sizes.length][];
+        double[][] im = new double[sizes.length][];
+        double[][] expectedRe = new double[sizes.length][];
+        double[][] expectedIm = new double[sizes.length][];
+        for (int f = 0; f < sizes.length; f++) {
+            re[f] = random(r, sizes[f]);
+            im[f] = random(r, sizes[f]);
+            expectedRe[f] = re[f].clone();
+            expectedIm[f] = im[f].clone();
+            FFTPlan.forSize(sizes[f]).transform(expectedRe[f], expectedIm[f]);
+        }
+        fft.transformAll(re, im);
+        for (int f = 0; f < sizes.length; f++) {
+            assertArrayEquals(expectedRe[f], re[f], 0);
+            assertArrayEquals(expectedIm[f], im[f], 0);
+        }
+    }
+
+    @Test
+    public void realForwardAll() {
+        Random r = new Random(2);
+        int frames = 200;
+        int size = 1024;
+        double[][] x = new double[frames][];
+        double[][] re = new double[frames][size / 2 + 1];
+        double[][] im = new double[frames][size / 2 + 1];
+        for (int f = 0; f < frames; f++) {
+            x[f] = random(r, size);
+        }
+        fft.realForwardAll(x, re, im);
+        double[] expectedRe = new double[size / 2 + 1];
+        double[] expectedIm = new double[size / 2 + 1];
+        for (int f = 0; f < frames; f++) {
+            FFTPlan.forSize(size).realForward(x[f], expectedRe, expectedIm);
+            assertArrayEquals(expectedRe, re[f], 0);
+            assertArrayEquals(expectedIm, im[f], 0);
+        }
+    }
+
+    @Test
+    public void largeTransform() {
+        Random r = new Random(3);
+        // past TASK_POINTS, so that stages are split between tasks too
+        for (int n : new int[] { ParallelFFT.TASK_POINTS,
+                ParallelFFT.TASK_POINTS * 2, 1 << 18 }) {
+            double[] re = random(r, n);
+            double[] im = random(r, n);
+            double[] expectedRe = re.clone();
+            double[] expectedIm = im.clone();
+            FFTPlan.forSize(n).transform(expectedRe, expectedIm);
+            fft.transform(re, im);
+            assertArrayEquals(expectedRe, re, 0);
+            assertArrayEquals(expectedIm, im, 0);
+        }
+    }
+
+    @Test
+    public void batchedLandmarks() {
+        Random r = new Random(4);
+        // tones that change every 0.1 to 0.3 s, with some noise
+        short[] samples = new short[11025 * 20 + 777];
+        int i = 0;
+        while (i < samples.length) {
+            double f = 200 + r.nextInt(2000);
+            int end = Math.min(samples.length, i + 1100 + r.nextInt(2200));
+            for (; i < end; i++) {
+                samples[i] = (short) (8000 * Math.sin(2 * Math.PI * f * i
+                        / 11025) + r.nextGaussian() * 300);
+            }
+        }
+        LandmarkFingerprint expected = landmarks(new LandmarkFingerprinter(),
+                samples);
+        LandmarkFingerprint actual = landmarks(new LandmarkFingerprinter(fft),
+                samples);
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.frames(), actual.frames());
+        assertEquals(expected.size(), actual.size());
+        for (int l = 0; l < expected.size(); l++) {
+            assertEquals(expected.hash(l), actual.hash(l));
+            assertEquals(expected.frame(l), actual.frame(l));
+        }
+    }
+
+    // the fingerprint of the samples, written in blocks of awkward sizes
+    private static LandmarkFingerprint landmarks(LandmarkFingerprinter lf,
+            short[] samples) {
+        lf.start(11025);
+        for (int from = 0; from < samples.length; from += 1000) {
+            lf.write(samples, from, Math.min(1000, samples.length - from));
+        }
+        lf.finish();
+        return lf.getFingerprint();
+    }
+
+    private static double[] random(Random r, int n) {
+        double[] a = new double[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = r.nextGaussian();
+        }
+        return a;
+    }
+}
@@ -0,0 +1,198 @@
+
+/*
+ * Checks the downmix of PcmNormalizer for every layout WavHeader accepts:
+ * 8, 16, 24 and 32 bit integer PCM, 32 and 64 bit float, plain and as
+ * WAVE_FORMAT_EXTENSIBLE, mono and with several channels. The WAV files
+ * are built in memory, and their samples chosen so that the mono sample
+ * expected is known exactly: the average of the channels, truncated
+ * towards zero, after each sample is reduced to its 16 most significant
+ * bits (8 bit samples re-centred on 0), or scaled by 32767, rounded and
+ * clipped for float.
+ */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.junit.Test;
+
+public class PcmNormalizerTest {
+
+    @Test
+    public void unsigned8Bit() throws Exception {
+        // (72 << 8 + -28 << 8) / 2, and silence at 128
+        check(WavHeader.FORMAT_PCM, 8, 2, new long[] { 200, 100, 128, 128, 0,
+                255 }, new short[] { 5632, 0, -128 });
+    }
+
+    @Test
+    public void signed16Bit() throws Exception {
+        check(WavHeader.FORMAT_PCM, 16, 2, new long[] { 1000, -3000, 1, -2,
+                32767, 32767, -32768, -32768 }, new short[] { -1000, 0,
+                32767, -32768 });
+    }
+
+    @Test
+    public void mono16BitIsUnchanged() throws Exception {
+        check(WavHeader.FORMAT_PCM, 16, 1, new long[] { 5, -5, 32767, -32768 },
+                new short[] { 5, -5, 32767, -32768 });
+    }
+
+    @Test
+    public void signed24Bit() throws Exception {
+        // the low byte is dropped: 0x1234 and -0x1000
+        check(WavHeader.FORMAT_PCM, 24, 2, new long[] { 0x123456, -0x100000,
+                0x7fffff, -0x800000 }, new short[] { 0x11a, 0 });
+    }
+
+    @Test
+    public void signed32Bit() throws Exception {
+        check(WavHeader.FORMAT_PCM, 32, 3, new long[] { 0x40000000,
+                0x20000000, -0x60000000, 0x7fffffff, 0x7fffffff, 0x7fffffff },
+                new short[] { 0, 32767 });
+    }
+
+    @Test
+    public void float32() throws Exception {
+        // 0.125 * 32767 = 4095.875; beyond +-1 is clipped
+        check(WavHeader.FORMAT_FLOAT, 32, 2, new long[] { bits32(0.5),
+                bits32(-0.25), bits32(2), bits32(2), bits32(-3), bits32(-1) },
+                new short[] { 4096, 32767, -32768 });
+    }
+
+    @Test
+    public void float64() throws Exception {
+        check(WavHeader.FORMAT_FLOAT, 64, 1, new long[] {
+                Double.doubleToLongBits(0.5), Double.doubleToLongBits(-1) },
+                new short[] { 16384, -32767 });
+    }
+
+    @Test
+    public void extensible24Bit() throws Exception {
+        byte[] wav = wav(WavHeader.FORMAT_PCM, 24, 2, new long[] { 0x123456,
+                -0x100000 }, true);
+        assertArrayEquals(new short[] { 0x11a }, normalize(wav, false));
+    }
+
+    @Test
+    public void extensibleFloat() throws Exception {
+        byte[] wav = wav(WavHeader.FORMAT_FLOAT, 32, 2, new long[] {
+                bits32(0.5), bits32(-0.25) }, true);
+        assertArrayEquals(new short[] { 4096 }, normalize(wav, false));
+    }
+
+    @Test
+    public void framesSplitAcrossReads() throws Exception {
+        // 3 channels of 24 bit, read a few bytes at a time and more than a
+        // block long, so frames are cut at every possible byte
+        int frames = PcmNormalizer.BLOCK_FRAMES + 777;
+        long[] samples = new long[3 * frames];
+        short[] expected = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            int a = (i * 7919) % 0x8000;
+            samples[3 * i] = a << 8;
+            samples[3 * i + 1] = -a << 8 | 0xff;
+            samples[3 * i + 2] = (a / 2) << 8;
+            // the low bytes are dropped, so the first two cancel out
+            expected[i] = (short) (a / 2 / 3);
+        }
+        byte[] wav = wav(WavHeader.FORMAT_PCM, 24, 3, samples, false);
+        assertArrayEquals(expected, normalize(wav, true));
+    }
+
+    @Test(expected = UnsupportedAudioFileException.class)
+    public void rejectsUnsupportedBits() throws Exception {
+        normalize(wav(WavHeader.FORMAT_PCM, 12, 1, new long[0], false), false);
+    }
+
+    private static void check(int format, int bits, int channels,
+            long[] samples, short[] expected) throws Exception {
+        byte[] wav = wav(format, bits, channels, samples, false);
+        assertArrayEquals(expected, normalize(wav, false));
+        assertEquals(expected.length, samples.length / channels);
+    }
+
+    private static int bits32(double v) {
+        return Float.floatToIntBits((float) v);
+    }
+
+    /*
+     * A WAV file of the given interleaved samples, each given as the
+     * little endian integer of its bits; with extensible, the format goes
+     * in the sub format GUID of a WAVE_FORMAT_EXTENSIBLE fmt chunk.
+     */
+    private static byte[] wav(int format, int bits, int channels,
+            long[] samples, boolean extensible) {
+        int bytes = bits / 8;
+        int fmtSize = extensible ? 40 : 16;
+        int dataSize = samples.length * bytes;
+        ByteBuffer b = ByteBuffer.allocate(20 + fmtSize + 8 + dataSize + 1)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        b.put("RIFF".getBytes()).putInt(12 + fmtSize + 8 + dataSize);
+        b.put("WAVE".getBytes());
+        b.put("fmt ".getBytes()).putInt(fmtSize);
+        b.putShort((short) (extensible ? WavHeader.FORMAT_EXTENSIBLE : format));
+        b.putShort((short) channels).putInt(11025);
+        b.putInt(11025 * channels * bytes).putShort((short) (channels * bytes));
+        b.putShort((short) bits);
+        if (extensible) {
+            b.putShort((short) 22).putShort((short) bits).putInt(0);
+            // the rest of the GUID, xxxxxxxx-0000-0010-8000-00aa00389b71
+            b.putInt(format).putShort((short) 0).putShort((short) 0x0010);
+            b.put(new byte[] { (byte) 0x80, 0, 0, (byte) 0xaa, 0, 0x38,
+                    (byte) 0x9b, 0x71 });
+        }
+        b.put("data".getBytes()).putInt(dataSize);
+        for (long s : samples) {
+            for (int i = 0; i < bytes; i++) {
+                b.put((byte) (s >>> (8 * i)));
+            }
+        }
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    // the mono samples of the WAV file, read whole or a few bytes at a time
+    private static short[] normalize(byte[] wav, boolean trickle)
+            throws IOException, UnsupportedAudioFileException {
+        InputStream in = new ByteArrayInputStream(wav);
+        if (trickle) {
+            in = new FilterInputStream(in) {
+                private int n;
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 1 + n++ % 5));
+                }
+            };
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PcmNormalizer.normalize(in, new MonoPcmSink() {
+            public void start(int sampleRate) {
+                assertEquals(11025, sampleRate);
+            }
+
+            public void write(short[] block, int offset, int n) {
+                for (int i = offset; i < offset + n; i++) {
+                    out.write(block[i] & 0xff);
+                    out.write(block[i] >> 8);
+                }
+            }
+
+            public void finish() {
+            }
+        });
+        ByteBuffer b = ByteBuffer.wrap(out.toByteArray()).order(
+                ByteOrder.LITTLE_ENDIAN);
+        short[] mono = new short[b.remaining() / 2];
+        b.asShortBuffer().get(mono);
+        return mono;
+    }
+}